@@ -26,6 +26,7 @@ import se.repos.indexing.item.ItemContentBufferStrategy;
 import se.simonsoft.cms.indexing.abx.HandlerLogicalId;
 import se.simonsoft.cms.indexing.xml.custom.ContentHandlerToIndexFields;
 import se.simonsoft.cms.indexing.xml.custom.LoggingErrorListener;
+import se.simonsoft.cms.indexing.xml.custom.XsltTransformerPool;
 import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.CmsItemPath;
 import se.simonsoft.cms.item.CmsRepository;
@@ -50,7 +51,7 @@ public class HandlerSubjectScheme extends HandlerLogicalId {
 
     private final XmlSourceReaderS9api sourceReader;
     private ItemContentBufferStrategy contentStrategy;
-    private transient XsltTransformer transformer;
+    private transient XsltTransformerPool transformers; // Thread safe, one transformer per call.
 
     private static final Logger logger = LoggerFactory.getLogger(HandlerSubjectScheme.class);
 
@@ -59,15 +60,13 @@ public class HandlerSubjectScheme extends HandlerLogicalId {
         var stylesheet = new StreamSource(this.getClass().getClassLoader().getResourceAsStream("se/simonsoft/cms/indexing/properties/subject-scheme-props.xsl"));
         this.sourceReader = sourceReader;
         XsltCompiler compiler = processor.newXsltCompiler();
-        XsltExecutable xsltCompiled;
         try {
             logger.info("Compiling subject scheme properties indexing XSL.");
-            xsltCompiled = compiler.compile(stylesheet);
+            transformers = new XsltTransformerPool(compiler.compile(stylesheet));
             logger.info("Compiled subject scheme properties indexing XSL.");
         } catch (SaxonApiException e) {
             throw new RuntimeException("Failed to compile subject scheme properties indexing XSL: " + e.getMessage(), e);
         }
-        transformer = xsltCompiled.load();
     }
 
     @Inject
@@ -147,8 +146,6 @@ public class HandlerSubjectScheme extends HandlerLogicalId {
 
     private void indexItemProperties(IndexingItemProgress progress, InputStream input, XdmMap properties) {
         Destination destination = new SAXDestination(new ContentHandlerToIndexFields(progress.getFields()));
-        LoggingErrorListener errorListener = new LoggingErrorListener();
-        SaxonMessageListener messageListener = new SaxonMessageListener();
         XmlSourceDocumentS9api document;
         try {
         	document = sourceReader.read(input);
@@ -160,22 +157,33 @@ public class HandlerSubjectScheme extends HandlerLogicalId {
 		}
         if (document != null) {
             XmlSourceElementS9api documentElement = document.getDocumentElement();
-            transformer.setParameter(new QName("properties"), properties);
-            transformer.setInitialContextNode(documentElement.getElementXdm());
-            transformer.setErrorListener(errorListener);
-            transformer.setMessageListener(messageListener);
-            transformer.setDestination(destination);
+            XsltTransformer transformer = transformers.borrow();
             try {
-                transformer.transform();
-            } catch (SaxonApiException e) {
-                if (e.getCause() instanceof TransformerException) { // including net.sf.saxon.trans.XPathException
-                    String msg = MessageFormatter.format("XML invalid for transformation at {}: {}", progress.getItem(), e.getMessage()).getMessage();
-                    logger.error(msg);
-                    // No longer throwing XmlNotWellFormedException since this situation can indicate XSL bug
-                    throw new RuntimeException(msg, e);
-                }
-                throw new RuntimeException("Extraction aborted with error at " + progress.getItem(), e);
+                transform(transformer, progress, documentElement, properties, destination);
+            } finally {
+                transformers.release(transformer);
+            }
+        }
+    }
+
+    private void transform(XsltTransformer transformer, IndexingItemProgress progress, XmlSourceElementS9api documentElement, XdmMap properties, Destination destination) {
+        LoggingErrorListener errorListener = new LoggingErrorListener();
+        SaxonMessageListener messageListener = new SaxonMessageListener();
+        transformer.setParameter(new QName("properties"), properties);
+        transformer.setInitialContextNode(documentElement.getElementXdm());
+        transformer.setErrorListener(errorListener);
+        transformer.setMessageListener(messageListener);
+        transformer.setDestination(destination);
+        try {
+            transformer.transform();
+        } catch (SaxonApiException e) {
+            if (e.getCause() instanceof TransformerException) { // including net.sf.saxon.trans.XPathException
+                String msg = MessageFormatter.format("XML invalid for transformation at {}: {}", progress.getItem(), e.getMessage()).getMessage();
+                logger.error(msg);
+                // No longer throwing XmlNotWellFormedException since this situation can indicate XSL bug
+                throw new RuntimeException(msg, e);
             }
+            throw new RuntimeException("Extraction aborted with error at " + progress.getItem(), e);
         }
     }
 }
@@ -15,11 +15,16 @@
  */
 package se.simonsoft.cms.indexing.xml;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 
 import net.sf.saxon.s9api.Processor;
 
@@ -36,6 +41,8 @@ import se.repos.indexing.item.IndexingItemProgress;
 import se.simonsoft.cms.indexing.xml.custom.HandlerXmlRepositem;
 import se.simonsoft.cms.indexing.xml.fields.XmlIndexFieldExtractionSource;
 import se.simonsoft.cms.indexing.xml.fields.XmlIndexFieldXslPipeline;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexReleaseReuseChecksum;
+import se.simonsoft.cms.item.CmsRepository;
 import se.simonsoft.cms.item.events.change.CmsChangesetItem;
 import se.simonsoft.cms.xmlsource.handler.XmlNotWellFormedException;
 import se.simonsoft.cms.xmlsource.handler.XmlSourceElement;
@@ -51,6 +58,7 @@ public class HandlerXml implements IndexingItemHandler {
 	public static final String FLAG_XML = "hasxml";
 	public static final String FLAG_XML_REPOSITEM = "hasxmlrepositem";
 	public static final String FLAG_XML_ERROR = "hasxmlerror";
+	public static final String FLAG_XML_STREAMING = "hasxmlstreaming";
 	
 	public final Logger logger = LoggerFactory.getLogger(this.getClass());
 	
@@ -64,15 +72,25 @@ public class HandlerXml implements IndexingItemHandler {
 	private TransformerService transformerNormalize;
 	
 	private Set<XmlIndexFieldExtraction> fieldExtraction = null;
+	private Provider<Set<XmlIndexFieldExtraction>> fieldExtractionProvider = null;
+	// Extractors are stateful, one set per worker thread.
+	private final ThreadLocal<Set<XmlIndexFieldExtraction>> fieldExtractionWorker = new ThreadLocal<Set<XmlIndexFieldExtraction>>() {
+		@Override
+		protected Set<XmlIndexFieldExtraction> initialValue() {
+			return fieldExtractionProvider.get();
+		}
+	};
 
 	private XmlIndexWriter indexWriter;
 	
 	private HandlerXmlRepositem handlerXmlRepositem;
+	private XmlIndexParallel parallel = null;
 	@Inject
 	private XmlIndexFieldXslPipeline xslPipeline; // Requesting preprocess XSL by handler.
 	
 	private Integer maxFilesize = null;
 	private String suppressRidBefore = null;
+	private boolean streaming = false;
 	
 	
 	@Inject
@@ -96,6 +114,22 @@ public class HandlerXml implements IndexingItemHandler {
 		this.fieldExtraction = fieldExtraction;
 	}
 
+	/**
+	 * @param fieldExtractionProvider new extractors for each thread, required by {@link XmlIndexParallel}
+	 */
+	@Inject
+	public void setFieldExtractionProvider(Provider<Set<XmlIndexFieldExtraction>> fieldExtractionProvider) {
+		this.fieldExtractionProvider = fieldExtractionProvider;
+	}
+
+	/**
+	 * @param parallel reposxml extraction when enabled, requires {@link #setFieldExtractionProvider(Provider)}
+	 */
+	@Inject
+	public void setParallel(XmlIndexParallel parallel) {
+		this.parallel = parallel;
+	}
+
 	@Inject
 	public void setDependenciesIndexing(
 			XmlIndexWriter indexAddProvider) {
@@ -105,13 +139,19 @@ public class HandlerXml implements IndexingItemHandler {
 	@Inject
 	public void setConfigIndexing(
 			@Named("se.simonsoft.cms.indexing.xml.maxFilesize") Integer maxFilesize,
-			@Named("se.simonsoft.cms.indexing.xml.suppressRidBefore") String suppressRidBefore
+			@Named("se.simonsoft.cms.indexing.xml.suppressRidBefore") String suppressRidBefore,
+			@Named("se.simonsoft.cms.indexing.xml.streaming") Boolean streaming
 			) {
 		
 		this.maxFilesize = maxFilesize;
 		this.suppressRidBefore = suppressRidBefore;
+		this.streaming = Boolean.TRUE.equals(streaming);
 		
-		logger.info("Configured to suppress files with size above: {}", this.maxFilesize);
+		if (this.streaming) {
+			logger.info("Configured to stream reposxml extraction of files with size above: {}", this.maxFilesize);
+		} else {
+			logger.info("Configured to suppress files with size above: {}", this.maxFilesize);
+		}
 		if (suppressRidBefore != null && !suppressRidBefore.isEmpty()) {
 			logger.info("Configured to suppress reposxml before RID: {}", this.suppressRidBefore);
 		}
@@ -136,13 +176,19 @@ public class HandlerXml implements IndexingItemHandler {
 					}
 					
 					// Determine if the XML file is too large.
-					if (maxFilesize != null && c.getFilesize() > maxFilesize) {
+					boolean large = maxFilesize != null && c.getFilesize() > maxFilesize;
+					if (large && !streaming) {
 						String msg = MessageFormatter.format("Deferring XML extraction when file size {} gt {}: " + c, c.getFilesize(), maxFilesize).getMessage();
 						throw new IndexingHandlerException(msg);
 					}
 					
 					try {
-						index(progress);
+						if (large) {
+							logger.info("Streaming XML extraction when file size {} gt {}: {}", c.getFilesize(), maxFilesize, c);
+							indexStreaming(progress);
+						} else {
+							index(progress);
+						}
 						// No longer doing intermediate commit of each XML file.
 						// Previously in order to manage solr core growth during huge changesets.
 					} catch (IndexingHandlerException ex) {
@@ -168,17 +214,50 @@ public class HandlerXml implements IndexingItemHandler {
 		TransformOptions options = new TransformOptions();
 		options.setParameter("source-reuse-tags-param", "*");
 		// Limiting for large elements, previously done in Java handler.
+		// The length check is in reuse-normalize.xsl (cms-xmlsource), a serialization that stops at the limit must be done there.
 		options.setParameter("source-reuse-max-chars", XmlIndexFieldExtractionSource.MAX_CHARACTERS_SOURCE);
 		return options;
 	}
 
-	protected void index(IndexingItemProgress progress) {
-		
-		TransformOptions options = getTransformOptionsNormalize();
-		
-		if (sourceReader == null) {
-			throw new IllegalStateException("No XmlSourceHandler has been provided.");
+	private boolean isReleasePrecompute(IndexingDoc fields) {
+		Collection<Object> pathArea = fields.getFieldValues("patharea");
+		if (pathArea == null || !pathArea.contains("release")) {
+			return false;
 		}
+		for (XmlIndexFieldExtraction ex : fieldExtraction) {
+			if (ex instanceof XmlIndexReleaseReuseChecksum && ((XmlIndexReleaseReuseChecksum) ex).isReleasePrecompute()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the Release transform of {@link XmlIndexReleaseReuseChecksum} on the Release being indexed.
+	 */
+	private void precompute(byte[] releaseDigest, XmlSourceDocumentS9api xmlDoc, Set<XmlIndexFieldExtraction> extraction) {
+		for (XmlIndexFieldExtraction ex : extraction) {
+			if (ex instanceof XmlIndexReleaseReuseChecksum) {
+				((XmlIndexReleaseReuseChecksum) ex).precompute(releaseDigest, xmlDoc);
+			}
+		}
+	}
+
+	/**
+	 * Overlaps fetching of related content with parsing and repositem extraction of this item.
+	 */
+	private void prefetch(IndexingDoc fields) {
+		for (XmlIndexFieldExtraction ex : fieldExtraction) {
+			if (ex instanceof XmlIndexReleaseReuseChecksum) {
+				((XmlIndexReleaseReuseChecksum) ex).prefetch(fields);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the item should only be indexed in repositem
+	 */
+	private boolean isIndexReposxml(IndexingItemProgress progress) {
 		
 		boolean indexReposxml = true;
 		CmsChangesetItem c = progress.getItem();
@@ -212,48 +291,56 @@ public class HandlerXml implements IndexingItemHandler {
 			logger.info("Suppressing reposxml indexing of 'Pending_Pretranslate' item: {}", progress.getItem());
 			indexReposxml = false;
 		}
+		return indexReposxml;
+	}
+	
+	protected void index(IndexingItemProgress progress) {
+		
+		if (sourceReader == null) {
+			throw new IllegalStateException("No XmlSourceHandler has been provided.");
+		}
 		
+		boolean indexReposxml = isIndexReposxml(progress);
+		// Parallel requires one set of extractors per thread.
+		boolean submit = fieldExtractionProvider != null && parallel != null && parallel.isEnabled();
 
-		XmlIndexAddSession docHandler = indexWriter.get();
+		if (indexReposxml) {
+			prefetch(progress.getFields());
+		}
+
+		XmlIndexAddSession docHandler = null;
 		try {
 			// Performing repositem extraction based on non-transformed XML (preserves DOCTYPE).
-			XmlSourceDocumentS9api xmlDoc = sourceReader.read(progress.getContents());
+			ContentDigest releaseContent = indexReposxml && isReleasePrecompute(progress.getFields()) ? new ContentDigest(progress.getContents()) : null;
+			XmlSourceDocumentS9api xmlDoc = sourceReader.read(releaseContent != null ? releaseContent : progress.getContents());
+			byte[] releaseDigest = releaseContent != null ? releaseContent.getDigest(progress.getItem().getFilesize()) : null;
 			// Perform repositem extraction.
 			handlerXmlRepositem.handle(progress, xmlDoc);
 			
 			if (indexReposxml) {
-				// Calculate source_reuse.
-				// Suppress source_reuse for Translations (depth = 1).
-				Integer depth = XmlIndexFieldExtraction.getDepthReposxml(progress.getFields());
-				if (depth == null) { // Depth is non-null for Translations (gets source_reuse from the Release instead)
-					xmlDoc = transformerNormalize.transform(xmlDoc, options);
+				if (submit) {
+					// Flagged when awaited, see HandlerXmlParallelAwait.
+					submitReposxml(progress, xmlDoc, releaseDigest);
 				} else {
-					// The normal path for Translations since CMS 5.0.
-					logger.debug("Suppress normalize transform (depth: {}): {}", depth, progress.getItem());
+					docHandler = indexWriter.get();
+					indexReposxml(progress.getRepository(), progress.getItem(), progress.getFields(), xmlDoc, releaseDigest, fieldExtraction, docHandler);
+					// success, flag this
+					progress.getFields().addField("flag", FLAG_XML);
 				}
-				// Next XSL in pipeline, specific to reposxml.
-				xmlDoc = xslPipeline.doTransformPipeline(xmlDoc, progress.getFields());
-				
-				// Clone the repositem document selectively. Used as base for creating one clone per element.
-				IndexingDoc itemDoc = cloneItemFields(progress.getFields());
-				XmlIndexProgress xmlProgress = new XmlIndexProgress(progress.getRepository(), itemDoc);
-				XmlSourceHandler sourceHandler = new XmlSourceHandlerFieldExtractors(xmlProgress, fieldExtraction, docHandler);
-			
-				sourceReader.handle(xmlDoc, sourceHandler);
-				// success, flag this
-				progress.getFields().addField("flag", FLAG_XML);
 			}
 
 			// Flag that it was indexed in repositem.
 			progress.getFields().addField("flag", FLAG_XML_REPOSITEM);
 			
 		} catch (IndexingHandlerException e) {
+			discardPending(docHandler);
 			// Already handled exception, improve error in index.
 			logger.error("IndexingHandlerException for {}: {}",  progress.getFields().getFieldValue("path"), e.getMessage());
 			throw e;
 		
 		// TODO: Ensure that Transformer framework figures this out and throws XmlNotWellFormedException.
 		} catch (XmlNotWellFormedException e) { 
+			discardPending(docHandler);
 			// failure, flag with error
 			progress.getFields().addField("flag", FLAG_XML_ERROR);
 			String msg = MessageFormatter.format("Invalid XML {} skipped. {}", progress.getFields().getFieldValue("path"), e.getCause()).getMessage();
@@ -261,6 +348,7 @@ public class HandlerXml implements IndexingItemHandler {
 			logger.debug(msg, e);
 			throw new IndexingHandlerException(msg, e);
 		} catch (RuntimeException e) { 
+			discardPending(docHandler);
 			// failure, flag with error
 			progress.getFields().addField("flag", FLAG_XML_ERROR);
 			String msg = MessageFormatter.format("Unexpected XML error {} skipped. {}", progress.getFields().getFieldValue("path"), e.getMessage()).getMessage();
@@ -270,6 +358,108 @@ public class HandlerXml implements IndexingItemHandler {
 		// TODO: Should we catch other forms of errors, from XSL?
 	}
 	
+	/**
+	 * Normalize, reposxml pipeline and element extraction.
+	 * 
+	 * The two transforms are separate, the normalized tree is built in between. Chaining them does not avoid
+	 * that tree with Saxon HE, a streamed pipeline requires streamable stylesheets (Saxon EE) and chaining
+	 * support in {@link TransformerServiceFactory}.
+	 * @param fields the item fields, not modified
+	 * @param releaseDigest content digest of a Release, null unless the RID-map should be cached
+	 */
+	private void indexReposxml(CmsRepository repository, CmsChangesetItem item, IndexingDoc fields, XmlSourceDocumentS9api xmlDoc, byte[] releaseDigest, Set<XmlIndexFieldExtraction> extraction, XmlIndexAddSession docHandler) {
+		
+		TransformOptions options = getTransformOptionsNormalize();
+		
+		// Calculate source_reuse.
+		// Suppress source_reuse for Translations (depth = 1).
+		Integer depth = XmlIndexFieldExtraction.getDepthReposxml(fields);
+		if (depth == null) { // Depth is non-null for Translations (gets source_reuse from the Release instead)
+			if (releaseDigest != null) {
+				// Before normalize, the Release transform has its own parameters.
+				precompute(releaseDigest, xmlDoc, extraction);
+			}
+			xmlDoc = transformerNormalize.transform(xmlDoc, options);
+		} else {
+			// The normal path for Translations since CMS 5.0.
+			logger.debug("Suppress normalize transform (depth: {}): {}", depth, item);
+		}
+		// Next XSL in pipeline, specific to reposxml. Bottom-up checksums are calculated in there when enabled.
+		xmlDoc = xslPipeline.doTransformPipeline(xmlDoc, fields);
+		
+		// Clone the repositem document selectively. Used as base for creating one clone per element.
+		IndexingDoc itemDoc = cloneItemFields(fields);
+		XmlIndexProgress xmlProgress = new XmlIndexProgress(repository, itemDoc);
+		XmlSourceHandler sourceHandler = new XmlSourceHandlerFieldExtractors(xmlProgress, extraction, docHandler);
+	
+		sourceReader.handle(xmlDoc, sourceHandler);
+	}
+	
+	private void submitReposxml(IndexingItemProgress progress, final XmlSourceDocumentS9api xmlDoc, final byte[] releaseDigest) {
+		final CmsRepository repository = progress.getRepository();
+		final CmsChangesetItem item = progress.getItem();
+		// Snapshot, later handlers modify the item fields.
+		final IndexingDoc fields = progress.getFields().deepCopy();
+		parallel.submit((String) fields.getFieldValue("id"), new Runnable() {
+			@Override
+			public void run() {
+				XmlIndexAddSession docHandler = indexWriter.get();
+				try {
+					indexReposxml(repository, item, fields, xmlDoc, releaseDigest, fieldExtractionWorker.get(), docHandler);
+				} catch (RuntimeException e) {
+					discardPending(docHandler);
+					indexWriter.deletePath(repository, item);
+					throw e;
+				}
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				indexWriter.deletePath(repository, item);
+			}
+		});
+	}
+	
+	/**
+	 * Reposxml extraction with bounded memory, without the XSL transforms and repositem extraction.
+	 * See {@link XmlIndexStreaming} for the fields that are omitted.
+	 */
+	protected void indexStreaming(IndexingItemProgress progress) {
+		
+		if (!isIndexReposxml(progress)) {
+			return;
+		}
+		
+		XmlIndexAddSession docHandler = indexWriter.get();
+		try {
+			IndexingDoc itemDoc = cloneItemFields(progress.getFields());
+			long count = new XmlIndexStreaming().index(progress.getContents(), itemDoc, docHandler);
+			logger.info("Streaming XML extraction produced {} elements: {}", count, progress.getItem());
+			progress.getFields().addField("flag", FLAG_XML);
+			progress.getFields().addField("flag", FLAG_XML_STREAMING);
+		} catch (XmlNotWellFormedException e) {
+			discardPending(docHandler);
+			progress.getFields().addField("flag", FLAG_XML_ERROR);
+			String msg = MessageFormatter.format("Invalid XML {} skipped. {}", progress.getFields().getFieldValue("path"), e.getMessage()).getMessage();
+			logger.error(msg);
+			logger.debug(msg, e);
+			throw new IndexingHandlerException(msg, e);
+		} catch (RuntimeException e) {
+			discardPending(docHandler);
+			progress.getFields().addField("flag", FLAG_XML_ERROR);
+			String msg = MessageFormatter.format("Unexpected XML error {} skipped. {}", progress.getFields().getFieldValue("path"), e.getMessage()).getMessage();
+			logger.error(msg, e);
+			throw new IndexingHandlerException(msg, e);
+		}
+	}
+	
+	private void discardPending(XmlIndexAddSession docHandler) {
+		// Elements not yet sent would otherwise hold the writer's memory budget.
+		if (docHandler != null) {
+			docHandler.clear();
+		}
+	}
+	
 	private IndexingDoc cloneItemFields(IndexingDoc fields) {
 		/*
 		IndexingDoc doc = fields.deepCopy();
@@ -277,7 +467,7 @@ public class HandlerXml implements IndexingItemHandler {
 		*/
 		// Now doing copy of selective fields instead of clone.
 		// Not really a deep copy of the values. Assumes that the values are immutable objects.
-		// TODO: A better way might be to implement an IndexingDoc impl that can keep a read-only set of fields in another IndexingDoc.
+		// Element docs keep this clone as read-only base, see XmlIndexDocOverlay.
 		IndexingDoc doc = supportLegacySchema.clone(fields);
 		return doc;
 	}
@@ -291,4 +481,42 @@ public class HandlerXml implements IndexingItemHandler {
 			}};
 	}	
 
+
+	/**
+	 * Digest of the content read by the parser.
+	 */
+	private static class ContentDigest extends DigestInputStream {
+
+		private long count = 0;
+
+		ContentDigest(InputStream in) {
+			super(in, XmlIndexReleaseReuseChecksum.getContentDigest());
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b > -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		/**
+		 * @return null unless the complete content has been read
+		 */
+		byte[] getDigest(long size) {
+			return count == size ? getMessageDigest().digest() : null;
+		}
+	}
+
 }
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+import se.repos.indexing.IndexingHandlerException;
+import se.repos.indexing.IndexingItemHandler;
+import se.repos.indexing.item.IndexingItemProgress;
+
+/**
+ * Awaits the reposxml extraction of an item submitted by {@link HandlerXml} to {@link XmlIndexParallel},
+ * flags and fails the item the same way as sequential extraction.
+ * Placed late in the item handlers, the extraction overlaps with the handlers in between.
+ */
+public class HandlerXmlParallelAwait implements IndexingItemHandler {
+
+	private static final Logger logger = LoggerFactory.getLogger(HandlerXmlParallelAwait.class);
+
+	private final XmlIndexWriter indexWriter;
+	private final XmlIndexParallel parallel;
+
+	@Inject
+	public HandlerXmlParallelAwait(XmlIndexWriter indexWriter, XmlIndexParallel parallel) {
+		this.indexWriter = indexWriter;
+		this.parallel = parallel;
+	}
+
+	@Override
+	public void handle(IndexingItemProgress progress) {
+		if (!parallel.isEnabled()) {
+			return;
+		}
+		String id = (String) progress.getFields().getFieldValue("id");
+		try {
+			if (parallel.await(id)) {
+				progress.getFields().addField("flag", HandlerXml.FLAG_XML);
+			}
+		} catch (RuntimeException e) {
+			progress.getFields().addField("flag", HandlerXml.FLAG_XML_ERROR);
+			// The extraction deletes its own docs on failure, but not when the wait timed out.
+			indexWriter.deletePath(progress.getRepository(), progress.getItem());
+			String msg = MessageFormatter.format("Unexpected XML error {} skipped. {}", progress.getFields().getFieldValue("path"), e.getMessage()).getMessage();
+			logger.error(msg, e);
+			throw new IndexingHandlerException(msg, e);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	@Override
+	public Set<Class<? extends IndexingItemHandler>> getDependencies() {
+		return new HashSet<Class<? extends IndexingItemHandler>>() {{
+				add(HandlerXml.class);
+			}};
+	}
+
+}
@@ -99,6 +99,8 @@ public abstract class IndexingHandlersXml {
 	 */
 	@SuppressWarnings("unchecked")
 	public static void configureLast(Object guiceMultibinder) {
+		// Reposxml extraction in parallel (se.simonsoft.cms.indexing.xml.parallelThreads), flags the item before it is completed.
+		IndexingHandlers.to(guiceMultibinder, HandlerXmlParallelAwait.class);
 		IndexingHandlers.to(guiceMultibinder, IndexingHandlers.STANDARD.get(IndexingHandlers.Group.Final));
 		IndexingHandlers.to(guiceMultibinder, MarkerXmlCommit.class);
 	}
@@ -19,14 +19,54 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.solr.client.solrj.SolrClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import se.repos.indexing.item.IndexingItemProgress;
 import se.repos.indexing.solrj.MarkerCommitSolrj;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexDeleteQueue;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexSendJournal;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexSendPool;
 
 public class MarkerXmlCommit extends MarkerCommitSolrj {
 
+	private final Logger logger = LoggerFactory.getLogger(MarkerXmlCommit.class);
+	
+	private SolrClient core;
+	private XmlIndexParallel parallel;
+	private XmlIndexContentPrefetch prefetch;
+	
 	@Inject
-	public MarkerXmlCommit(@Named("reposxml") SolrClient core) {
+	public MarkerXmlCommit(@Named("reposxml") SolrClient core, XmlIndexParallel parallel, XmlIndexContentPrefetch prefetch) {
 		super(core);
+		this.core = core;
+		this.parallel = parallel;
+		this.prefetch = prefetch;
+	}
+	
+	@Override
+	public void handle(IndexingItemProgress progress) {
+		
+		// #1094 Issuing SolR commit without awaiting background sends will make the resulting searcher incomplete.
+		// Awaiting per changeset instead of per document, throws if a background send failed.
+		long start = System.currentTimeMillis();
+		try {
+			// Items extracted in parallel (parallelThreads) are normally awaited per item, failures are flagged there.
+			parallel.await();
+			// Content prefetched for items that failed before reading it.
+			prefetch.clear();
+			XmlIndexSendPool.awaitCompletion(core);
+			// Logging in info level because this can show if XML processing outpaces Solr.
+			logger.info("Awaited completion of Solr Background sends: {} ms", System.currentTimeMillis() - start);
+			// Batches spilled to the journal while Solr was unavailable (journalDir).
+			XmlIndexSendJournal.awaitDrained(core);
+		} finally {
+			// Deletes collected during the changeset (XmlIndexWriterSolrj.deleteCoalescing), queued after the last add was sent.
+			// Also when awaiting failed, previous revisions must not remain in the index.
+			XmlIndexDeleteQueue.flush(core);
+		}
+		
+		super.handle(progress);
 	}
 	
 }
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches contents ahead of the extraction, hiding backend latency behind XML processing.
+ *
+ * Contents are buffered in memory, limited in total and by the
+ * lookahead (entries fetched or pending). Anything not prefetched, or above the limits, is fetched
+ * inline by the caller as before ({@link #take(Object)} returns null).
+ * Entries that are not taken are discarded by {@link #clear()} at the end of the changeset.
+ *
+ * One instance is shared by the extractor instances.
+ */
+@Singleton
+public class XmlIndexContentPrefetch {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexContentPrefetch.class);
+
+	private static final int THREADS = 2;
+	private static final long MEMORY_MAX = 64 * 1024 * 1024;
+
+	private final int lookahead;
+	private final long memoryMax;
+	private final ExecutorService executor;
+	private final Map<Object, Entry> entries = new LinkedHashMap<Object, Entry>(); // Guarded by this.
+	private final AtomicLong memory = new AtomicLong();
+
+	/**
+	 * @param lookahead entries fetched or pending, 0 disables prefetch
+	 */
+	@Inject
+	public XmlIndexContentPrefetch(@Named("se.simonsoft.cms.indexing.xml.prefetchLookahead") Integer lookahead) {
+		this(lookahead != null ? lookahead : 0, THREADS, MEMORY_MAX);
+	}
+
+	XmlIndexContentPrefetch(int lookahead, int threads, long memoryMax) {
+		this.lookahead = lookahead;
+		this.memoryMax = memoryMax;
+		if (lookahead <= 0) {
+			this.executor = null;
+			return;
+		}
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reposxml-prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Prefetching related content with lookahead {}", lookahead);
+	}
+
+	/**
+	 * @return false if not configured, {@link #prefetch(Object, Callable)} has no effect
+	 */
+	public boolean isEnabled() {
+		return executor != null;
+	}
+
+	/**
+	 * Starts fetching unless already prefetched or the lookahead window is full.
+	 * @param key identifies the content, typically an item id with peg revision
+	 * @param contents opens the content stream, called on a prefetch thread
+	 */
+	public synchronized void prefetch(final Object key, final Callable<InputStream> contents) {
+		if (!isEnabled() || entries.containsKey(key)) {
+			return;
+		}
+		if (entries.size() >= lookahead) {
+			// Completed entries are about to be taken, the skipped content is fetched inline.
+			logger.debug("Prefetch window full, skipping: {}", key);
+			return;
+		}
+		final Entry entry = new Entry();
+		entry.future = executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return read(key, contents, entry);
+			}
+		});
+		entries.put(key, entry);
+	}
+
+	/**
+	 * @return the prefetched content, awaiting a pending fetch, null if not prefetched or failed
+	 */
+	public InputStream take(Object key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.remove(key);
+		}
+		if (entry == null) {
+			return null;
+		}
+		try {
+			byte[] b = entry.future.get();
+			if (b == null) {
+				return null;
+			}
+			logger.debug("Prefetched content ({} bytes): {}", b.length, key);
+			return new ByteArrayInputStream(b);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			logger.warn("Prefetch failed, fetching inline: {}: {}", key, e.getCause().getMessage());
+			return null;
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Releases a prefetched content that will not be used.
+	 */
+	public void discard(Object key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.remove(key);
+		}
+		if (entry != null) {
+			entry.future.cancel(true);
+			release(entry);
+		}
+	}
+
+	long getMemory() {
+		return memory.get();
+	}
+
+	/**
+	 * Discards entries that were not taken, e.g. when the extraction failed before reading the content.
+	 */
+	public void clear() {
+		Map<Object, Entry> discarded;
+		synchronized (this) {
+			discarded = new LinkedHashMap<Object, Entry>(entries);
+			entries.clear();
+		}
+		for (Map.Entry<Object, Entry> e : discarded.entrySet()) {
+			logger.debug("Discarding prefetched content that was not used: {}", e.getKey());
+			e.getValue().future.cancel(true);
+			release(e.getValue());
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized (entry) {
+			memory.addAndGet(-entry.reserved);
+			entry.reserved = 0;
+			entry.released = true;
+		}
+	}
+
+	private byte[] read(Object key, Callable<InputStream> contents, Entry entry) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[64 * 1024];
+		try (InputStream in = contents.call()) {
+			int n;
+			while ((n = in.read(buf)) > -1) {
+				if (!reserve(entry, n)) {
+					logger.info("Prefetch above memory limit {}, fetching inline: {}", memoryMax, key);
+					return null;
+				}
+				out.write(buf, 0, n);
+			}
+		} catch (IOException e) {
+			throw new IOException("Failed to prefetch: " + key, e);
+		}
+		return out.toByteArray();
+	}
+
+	private boolean reserve(Entry entry, long n) {
+		synchronized (entry) {
+			if (entry.released || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			if (memory.addAndGet(n) > memoryMax) {
+				memory.addAndGet(-n);
+				return false;
+			}
+			entry.reserved += n;
+			return true;
+		}
+	}
+
+
+	private static class Entry {
+		Future<byte[]> future;
+		long reserved = 0; // Guarded by this.
+		boolean released = false;
+	}
+
+}
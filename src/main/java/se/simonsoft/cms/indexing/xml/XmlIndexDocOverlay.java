@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+
+/**
+ * Element doc keeping the item fields in a shared base doc, storing only its own fields.
+ *
+ * Replaces a deep copy of the base doc per element. A base field is copied when
+ * the element adds a value to it, removing a base field only hides it in this doc.
+ * The base fields are merged into the Solr doc once, by {@link #getSolrDoc()} when sending,
+ * sharing the {@link SolrInputField} instances. The base doc must not be modified while
+ * element docs are pending.
+ */
+public class XmlIndexDocOverlay extends IndexingDocIncrementalSolrj {
+
+	private final IndexingDocIncrementalSolrj base;
+
+	private Set<String> removed = null;
+	private boolean merged = false;
+
+	public XmlIndexDocOverlay(IndexingDocIncrementalSolrj base) {
+		super();
+		this.base = base;
+	}
+
+	/**
+	 * @return the shared item fields
+	 */
+	public IndexingDocIncrementalSolrj getBase() {
+		return base;
+	}
+
+	private boolean isBase(String name) {
+		return !merged && base.containsKey(name) && (removed == null || !removed.contains(name));
+	}
+
+	private boolean isOwn(String name) {
+		return super.containsKey(name);
+	}
+
+	/**
+	 * Copy-on-write of a base field, before it is modified.
+	 */
+	private void copyBase(String name) {
+		if (isBase(name) && !isOwn(name)) {
+			for (Object v : base.getFieldValues(name)) {
+				super.addField(name, v);
+			}
+		} else if (merged) {
+			SolrInputField f = super.getSolrDoc().getField(name);
+			if (f != null && f == base.getSolrDoc().getField(name)) {
+				super.getSolrDoc().put(name, f.deepCopy());
+			}
+		}
+	}
+
+	@Override
+	public void addField(String name, Object value) {
+		copyBase(name);
+		super.addField(name, value);
+	}
+
+	@Override
+	public void setField(String name, Object value) {
+		if (merged) {
+			super.getSolrDoc().remove(name); // Never modify the shared field.
+		}
+		super.setField(name, value);
+	}
+
+	@Override
+	public Object getFieldValue(String name) {
+		if (!isOwn(name) && isBase(name)) {
+			return base.getFieldValue(name);
+		}
+		return super.getFieldValue(name);
+	}
+
+	@Override
+	public Collection<Object> getFieldValues(String name) {
+		if (!isOwn(name) && isBase(name)) {
+			return base.getFieldValues(name);
+		}
+		return super.getFieldValues(name);
+	}
+
+	@Override
+	public Collection<String> getFieldNames() {
+		Set<String> names = new LinkedHashSet<String>();
+		if (!merged) {
+			for (String name : base.getFieldNames()) {
+				if (isBase(name)) {
+					names.add(name);
+				}
+			}
+		}
+		names.addAll(super.getFieldNames());
+		return names;
+	}
+
+	@Override
+	public boolean containsKey(String name) {
+		return isOwn(name) || isBase(name);
+	}
+
+	@Override
+	public int size() {
+		return getFieldNames().size();
+	}
+
+	@Override
+	public void removeField(String name) {
+		if (isBase(name)) {
+			if (removed == null) {
+				removed = new HashSet<String>();
+			}
+			removed.add(name);
+		}
+		if (merged) {
+			super.getSolrDoc().remove(name); // Never modify the shared field.
+			return;
+		}
+		super.removeField(name);
+	}
+
+	@Override
+	public IndexingDoc deepCopy() {
+		IndexingDoc copy = new IndexingDocIncrementalSolrj();
+		for (String name : getFieldNames()) {
+			for (Object v : getFieldValues(name)) {
+				copy.addField(name, v);
+			}
+		}
+		return copy;
+	}
+
+	@Override
+	public SolrInputDocument getSolrDoc() {
+		SolrInputDocument doc = super.getSolrDoc();
+		if (!merged) {
+			for (SolrInputField f : base.getSolrDoc()) {
+				if (isBase(f.getName()) && !doc.containsKey(f.getName())) {
+					doc.put(f.getName(), f);
+				}
+			}
+			merged = true;
+		}
+		return doc;
+	}
+
+}
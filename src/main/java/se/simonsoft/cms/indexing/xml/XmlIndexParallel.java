@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs reposxml extraction of the items in a changeset in parallel, on a work-stealing pool.
+ *
+ * {@link HandlerXml} does parsing and repositem extraction when handling the item and submits
+ * the reposxml part, {@link HandlerXmlParallelAwait} awaits the item later in the handler chain and
+ * flags it like sequential extraction does. {@link MarkerXmlCommit} awaits anything left before commit.
+ * The number of submitted items is limited, holding their parsed documents.
+ *
+ * One instance is shared by the handlers and the marker.
+ */
+@Singleton
+public class XmlIndexParallel {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexParallel.class);
+
+	/**
+	 * Submitted items per thread, including running, before handling the next item blocks.
+	 */
+	private static final int PENDING_PER_THREAD = 2;
+
+	/**
+	 * Max wait for an item, and for all remaining items before commit.
+	 */
+	private static final long TIMEOUT_SECONDS_DEFAULT = 3600;
+
+	private final ForkJoinPool pool;
+	private final Semaphore permits;
+	private final long timeoutSeconds;
+	private final Map<String, Submitted> submitted = new LinkedHashMap<String, Submitted>(); // Guarded by this.
+	/**
+	 * Timed out, awaited again before commit. Guarded by this.
+	 */
+	private final Map<String, Submitted> abandoned = new LinkedHashMap<String, Submitted>();
+	private int submittedMax = 0; // Guarded by this.
+
+	/**
+	 * @param threads worker threads, 0 for sequential extraction when handling each item
+	 */
+	@Inject
+	public XmlIndexParallel(@Named("se.simonsoft.cms.indexing.xml.parallelThreads") Integer threads) {
+		this(threads != null ? threads : 0, TIMEOUT_SECONDS_DEFAULT);
+	}
+
+	XmlIndexParallel(int threads, long timeoutSeconds) {
+		this.pool = threads > 0 ? new ForkJoinPool(threads) : null;
+		this.permits = new Semaphore(Math.max(0, threads) * PENDING_PER_THREAD);
+		this.timeoutSeconds = timeoutSeconds;
+		if (threads > 0) {
+			logger.info("Parallel XML extraction using {} threads", threads);
+		}
+	}
+
+	/**
+	 * @return false if configured for sequential extraction, nothing can be submitted
+	 */
+	public boolean isEnabled() {
+		return pool != null;
+	}
+
+	/**
+	 * @param item unique per item, typically the id field
+	 * @param task blocks if too many items are pending
+	 * @param discard run after the task if the item timed out while the task was running
+	 */
+	public void submit(final String item, final Runnable task, final Runnable discard) {
+		if (!isEnabled()) {
+			throw new IllegalStateException("Parallel XML extraction is not configured: " + item);
+		}
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted when submitting XML extraction: " + item, e);
+		}
+		final Submitted s = new Submitted();
+		try {
+			s.future = CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (!s.start()) {
+							logger.warn("Skipping XML extraction that timed out before it started: {}", item);
+							return;
+						}
+						try {
+							task.run();
+						} finally {
+							if (s.isAbandoned()) {
+								logger.warn("Discarding XML extraction completed after timeout: {}", item);
+								discard.run();
+							}
+						}
+					} finally {
+						// Not when the future completes, a task that timed out holds its permit until it is done.
+						permits.release();
+					}
+				}
+			}, pool);
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		synchronized (this) {
+			submitted.put(item, s);
+			submittedMax = Math.max(submittedMax, submitted.size());
+		}
+	}
+
+	/**
+	 * @return the most items submitted and not yet awaited at the same time, 1 if handling awaits each item before the next
+	 */
+	synchronized int getSubmittedMax() {
+		return submittedMax;
+	}
+
+	/**
+	 * Awaits one item, waiting at most the configured timeout.
+	 * A task that has not started when the wait times out is not run.
+	 * @param item as submitted
+	 * @return false if the item was not submitted or already awaited
+	 * @throws RuntimeException from the task, or if the wait timed out
+	 */
+	public boolean await(String item) {
+		Submitted s;
+		synchronized (this) {
+			s = submitted.remove(item);
+		}
+		if (s == null) {
+			return false;
+		}
+		try {
+			s.future.get(timeoutSeconds, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (TimeoutException e) {
+			abandon(item, s);
+			throw new IllegalStateException("Timed out after " + timeoutSeconds + " s awaiting XML extraction: " + item);
+		} catch (InterruptedException e) {
+			abandon(item, s);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted when awaiting XML extraction: " + item, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Awaits all remaining items within the timeout in total, logs failures and timeouts.
+	 * Called at the end of each changeset, failures are reported per item by {@link #await(String)}.
+	 * Also awaits items that timed out earlier but are still running, so that nothing is written after this returns.
+	 * @return the items that failed or did not complete
+	 */
+	List<String> await() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		Map<String, Submitted> remaining;
+		Map<String, Submitted> running;
+		synchronized (this) {
+			remaining = new LinkedHashMap<String, Submitted>(submitted);
+			submitted.clear();
+			running = new LinkedHashMap<String, Submitted>(abandoned);
+			abandoned.clear();
+		}
+		List<String> failed = new ArrayList<String>();
+		for (Map.Entry<String, Submitted> s : remaining.entrySet()) {
+			try {
+				s.getValue().future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (ExecutionException e) {
+				logger.error("Parallel XML extraction failed for {}: {}", s.getKey(), e.getCause().getMessage(), e.getCause());
+				failed.add(s.getKey());
+			} catch (TimeoutException e) {
+				abandon(s.getKey(), s.getValue());
+				logger.error("Parallel XML extraction did not complete within {} s: {}", timeoutSeconds, s.getKey());
+				failed.add(s.getKey());
+			} catch (InterruptedException e) {
+				abandon(s.getKey(), s.getValue());
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted when awaiting XML extraction: {}", s.getKey());
+				failed.add(s.getKey());
+			}
+		}
+		for (Map.Entry<String, Submitted> s : running.entrySet()) {
+			try {
+				s.getValue().future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (ExecutionException e) {
+				logger.debug("Timed out XML extraction failed when done: {}", s.getKey());
+			} catch (TimeoutException e) {
+				abandon(s.getKey(), s.getValue());
+				logger.error("XML extraction that timed out is still running: {}", s.getKey());
+				failed.add(s.getKey());
+			} catch (InterruptedException e) {
+				abandon(s.getKey(), s.getValue());
+				Thread.currentThread().interrupt();
+				failed.add(s.getKey());
+			}
+		}
+		return failed;
+	}
+
+	private void abandon(String item, Submitted s) {
+		if (s.abandon()) {
+			synchronized (this) {
+				abandoned.put(item, s);
+			}
+		}
+	}
+
+
+	private static class Submitted {
+
+		CompletableFuture<Void> future; // Set before it is published.
+		private boolean abandoned = false; // Guarded by this.
+
+		synchronized boolean start() {
+			return !abandoned;
+		}
+
+		synchronized boolean isAbandoned() {
+			return abandoned;
+		}
+
+		/**
+		 * Not started: never runs. Running: discarded when done.
+		 * @return true if the task is running or has not yet been skipped, the future is not completed
+		 */
+		synchronized boolean abandon() {
+			abandoned = true;
+			return !future.isDone();
+		}
+	}
+
+}
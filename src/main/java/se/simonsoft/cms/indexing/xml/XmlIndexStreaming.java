@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexIdAppendDepthFirstPosition;
+import se.simonsoft.cms.xmlsource.handler.XmlNotWellFormedException;
+import se.simonsoft.xmltracking.index.SchemaFieldNames;
+import se.simonsoft.xmltracking.index.SchemaFieldNamesReposxml;
+
+/**
+ * StAX based reposxml extraction for files above maxFilesize, memory is bounded by
+ * {@value #DEPTH_MAX} levels and {@value #TEXT_MAX} characters of text instead of the file size.
+ *
+ * Element docs get the same ids as the tree based extraction with the same depth limit, with the
+ * fields from {@link se.simonsoft.cms.indexing.xml.fields.XmlIndexFieldElement}: name, attributes,
+ * namespaces, depth, position, treelocation, parent, root, ancestor and preceding sibling fields.
+ * Text is tokenized like the reposxml XSL, element boundaries separate words and text below @keyref is excluded.
+ * Fields that depend on the normalized subtree or the XSL pipeline (source_reuse, checksums,
+ * reuse fields, word counts) are omitted, as is text above the limit.
+ * Elements without checksum are never used by Pretranslate.
+ */
+public class XmlIndexStreaming {
+
+	/**
+	 * Deeper elements are not indexed, their text is included in the ancestors.
+	 */
+	private static final int DEPTH_MAX = 3;
+
+	/**
+	 * The text field is omitted for elements with more text.
+	 */
+	private static final int TEXT_MAX = 2000;
+
+	private static final String NS_CMSREPOSXML = "http://www.simonsoft.se/namespace/cms-reposxml";
+
+	private final SchemaFieldNames fieldNames = new SchemaFieldNamesReposxml();
+	private final int depthMax;
+	private final int textMax;
+
+	public XmlIndexStreaming() {
+		this(DEPTH_MAX, TEXT_MAX);
+	}
+
+	XmlIndexStreaming(int depthMax, int textMax) {
+		this.depthMax = depthMax;
+		this.textMax = textMax;
+	}
+
+	/**
+	 * @param xml the file contents, not closed
+	 * @param baseDoc item fields, including id
+	 * @param docHandler receives the element docs, ended when done
+	 * @return number of element docs
+	 */
+	public long index(InputStream xml, IndexingDoc baseDoc, XmlIndexAddSession docHandler) {
+		String baseId = (String) baseDoc.getFieldValue("id");
+		if (baseId == null) {
+			throw new IllegalArgumentException("Missing id field in indexing doc");
+		}
+		try {
+			XMLStreamReader reader = getInputFactory().createXMLStreamReader(xml);
+			try {
+				return index(reader, baseId, baseDoc, docHandler);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new XmlNotWellFormedException(e.getMessage(), e);
+		}
+	}
+
+	private long index(XMLStreamReader reader, String baseId, IndexingDoc baseDoc, XmlIndexAddSession docHandler) throws XMLStreamException {
+		Deque<Frame> open = new ArrayDeque<Frame>();
+		int depth = 0;
+		int keyrefDepth = 0; // Depth of the outermost open element with @keyref, 0 if none.
+		long count = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				separate(open);
+				if (keyrefDepth == 0 && isKeyref(reader)) {
+					keyrefDepth = depth;
+				}
+				Frame parent = open.peek();
+				if (parent != null && parent.depth == depth - 1) {
+					parent.children++;
+				}
+				if (depth <= depthMax) {
+					count++;
+					String id = baseId + "|" + XmlIndexIdAppendDepthFirstPosition.getElementId(count);
+					int position = parent == null ? 1 : parent.children;
+					open.push(begin(reader, baseDoc, id, depth, position, open));
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (keyrefDepth > 0) {
+					break; // Inserted during publishing, not counted by the reposxml XSL.
+				}
+				for (Frame f : open) {
+					f.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth <= depthMax) {
+					Frame f = open.pop();
+					String text = f.getText();
+					if (text != null) {
+						f.doc.addField("text", text);
+					}
+					docHandler.add(f.doc);
+				}
+				if (depth == keyrefDepth) {
+					keyrefDepth = 0;
+				}
+				depth--;
+				separate(open);
+				break;
+			case XMLStreamConstants.COMMENT:
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				// Not indexed, but they end a text node like an element boundary.
+				separate(open);
+				break;
+			default:
+				// Unresolved entity references are not indexed.
+			}
+		}
+		docHandler.end();
+		return count;
+	}
+
+	private static boolean isKeyref(XMLStreamReader reader) {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String ns = reader.getAttributeNamespace(i);
+			if ((ns == null || ns.isEmpty()) && "keyref".equals(reader.getAttributeLocalName(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The XSL tokenizes each text node, so words never continue across element boundaries.
+	 */
+	private void separate(Deque<Frame> open) {
+		for (Frame f : open) {
+			f.separate();
+		}
+	}
+
+	private Frame begin(XMLStreamReader reader, IndexingDoc baseDoc, String id, int depth, int position, Deque<Frame> open) {
+		String name = getName(reader.getPrefix(), reader.getLocalName());
+		Frame parent = open.peek();
+		Frame f = new Frame(newElementDoc(baseDoc), id, name, depth, parent == null ? "1" : parent.location + "." + position);
+		IndexingDoc doc = f.doc;
+		doc.setField("id", id);
+		doc.addField("name", name);
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			if (prefix != null && !prefix.isEmpty() && !NS_CMSREPOSXML.equals(reader.getNamespaceURI(i))) {
+				doc.addField("ns_" + prefix, reader.getNamespaceURI(i));
+				f.namespacesInherited.put("ins_" + prefix, reader.getNamespaceURI(i));
+			}
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			if (NS_CMSREPOSXML.equals(reader.getAttributeNamespace(i))) {
+				continue;
+			}
+			String a = getName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+			String value = reader.getAttributeValue(i);
+			doc.addField(fieldNames.getAttribute(a), value);
+			f.attributes.put(a, value);
+			if (!f.attributesInherited.containsKey(a)) {
+				f.attributesInherited.put(a, value);
+			}
+		}
+		// Inherited includes self, then the nearest ancestor.
+		if (parent != null) {
+			for (Map.Entry<String, String> n : parent.namespacesInherited.entrySet()) {
+				if (!f.namespacesInherited.containsKey(n.getKey())) {
+					f.namespacesInherited.put(n.getKey(), n.getValue());
+				}
+			}
+			for (Map.Entry<String, String> a : parent.attributesInherited.entrySet()) {
+				if (!f.attributesInherited.containsKey(a.getKey())) {
+					f.attributesInherited.put(a.getKey(), a.getValue());
+				}
+			}
+		}
+		doc.addField("depth", depth);
+		doc.addField("position", position);
+		doc.addField("treelocation", f.location);
+		for (Map.Entry<String, String> n : f.namespacesInherited.entrySet()) {
+			doc.addField(n.getKey(), n.getValue());
+		}
+		for (Map.Entry<String, String> a : f.attributesInherited.entrySet()) {
+			doc.addField(fieldNames.getAttributeInherited(a.getKey()), a.getValue());
+		}
+
+		Frame root = parent != null ? open.peekLast() : f;
+		if (parent != null) {
+			// Ancestor is the parent's inherited.
+			for (Map.Entry<String, String> a : parent.attributesInherited.entrySet()) {
+				doc.addField(fieldNames.getAttributeAncestor(a.getKey()), a.getValue());
+			}
+			doc.addField("id_p", parent.id);
+			doc.addField("pname", parent.name);
+		}
+		doc.addField("id_r", root.id);
+		doc.addField("rname", root.name);
+		for (Map.Entry<String, String> a : root.attributes.entrySet()) {
+			doc.addField(fieldNames.getAttributeRoot(a.getKey()), a.getValue());
+		}
+		if (parent != null) {
+			Iterator<Frame> ancestors = open.descendingIterator(); // Root first.
+			while (ancestors.hasNext()) {
+				Frame a = ancestors.next();
+				doc.addField("aname", a.name);
+				doc.addField("id_a", a.id);
+			}
+			if (parent.precedingId != null) {
+				doc.addField("id_s", parent.precedingId);
+				doc.addField("sname", parent.precedingName);
+				for (Map.Entry<String, String> a : parent.precedingAttributes.entrySet()) {
+					doc.addField(fieldNames.getAttributeSiblingPreceding(a.getKey()), a.getValue());
+				}
+			}
+			parent.precedingId = f.id;
+			parent.precedingName = f.name;
+			parent.precedingAttributes = f.attributes;
+		}
+		return f;
+	}
+
+	private static String getName(String prefix, String localName) {
+		if (prefix == null || prefix.isEmpty()) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+
+	private IndexingDoc newElementDoc(IndexingDoc baseDoc) {
+		if (baseDoc instanceof IndexingDocIncrementalSolrj) {
+			return new XmlIndexDocOverlay((IndexingDocIncrementalSolrj) baseDoc);
+		}
+		return baseDoc.deepCopy();
+	}
+
+	private XMLInputFactory getInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		return factory;
+	}
+
+
+	private static class Frame {
+
+		final IndexingDoc doc;
+		final String id;
+		final String name;
+		final int depth;
+		final String location;
+		/**
+		 * Attribute name to value, in document order.
+		 */
+		final Map<String, String> attributes = new LinkedHashMap<String, String>();
+		/**
+		 * Self first, then the nearest ancestor, one per attribute name.
+		 */
+		final Map<String, String> attributesInherited = new LinkedHashMap<String, String>();
+		/**
+		 * Field name to namespace uri, self first.
+		 */
+		final Map<String, String> namespacesInherited = new LinkedHashMap<String, String>();
+		int children = 0;
+		/**
+		 * The previous child element, not the frame itself since its doc is done.
+		 */
+		String precedingId = null;
+		String precedingName = null;
+		Map<String, String> precedingAttributes = null;
+		private StringBuilder text = new StringBuilder();
+
+		Frame(IndexingDoc doc, String id, String name, int depth, String location) {
+			this.doc = doc;
+			this.id = id;
+			this.name = name;
+			this.depth = depth;
+			this.location = location;
+		}
+
+		void append(char[] c, int start, int length) {
+			if (text == null) {
+				return;
+			}
+			if (text.length() + length > textMax) {
+				text = null; // Omitted, never truncated.
+				return;
+			}
+			text.append(c, start, length);
+		}
+
+		void separate() {
+			if (text != null && text.length() > 0 && text.charAt(text.length() - 1) != ' ') {
+				append(SEPARATOR, 0, 1);
+			}
+		}
+
+		/**
+		 * @return whitespace normalized text, null if above the limit
+		 */
+		String getText() {
+			if (text == null) {
+				return null;
+			}
+			return text.toString().replaceAll("\\s+", " ").trim();
+		}
+	}
+
+	private static final char[] SEPARATOR = new char[] { ' ' };
+
+}
@@ -21,6 +21,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
 import se.simonsoft.cms.indexing.xml.fields.XmlIndexIdAppendDepthFirstPosition;
 import se.simonsoft.cms.xmlsource.handler.XmlSourceDoctype;
 import se.simonsoft.cms.xmlsource.handler.XmlSourceElement;
@@ -113,7 +114,7 @@ class XmlSourceHandlerFieldExtractors implements XmlSourceHandler {
 		
 		String id = idAppender.getXmlElementId(element);
 		
-		IndexingDoc doc = this.baseDoc.deepCopy();
+		IndexingDoc doc = newElementDoc();
 		doc.setField("id", id);
 		
 		for (XmlIndexFieldExtraction ex : fieldExtraction) {
@@ -122,4 +123,14 @@ class XmlSourceHandlerFieldExtractors implements XmlSourceHandler {
 		docHandler.add(doc);
 	}
 	
+	/**
+	 * Element docs share the item fields instead of copying them per element.
+	 */
+	private IndexingDoc newElementDoc() {
+		if (this.baseDoc instanceof IndexingDocIncrementalSolrj) {
+			return new XmlIndexDocOverlay((IndexingDocIncrementalSolrj) this.baseDoc);
+		}
+		return this.baseDoc.deepCopy();
+	}
+	
 }
@@ -18,6 +18,10 @@ package se.simonsoft.cms.indexing.xml.custom;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import javax.inject.Inject;
 import javax.xml.transform.Source;
@@ -37,7 +41,6 @@ import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltCompiler;
-import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import se.repos.indexing.IndexingDoc;
 import se.repos.indexing.item.IndexingItemProgress;
@@ -59,8 +62,17 @@ public class HandlerXmlRepositem {
 
 	private transient Processor processor;
 	private transient XmlSourceReaderS9api sourceReader;
-	private transient XsltExecutable xsltCompiled;
-	private transient XsltTransformer transformer; // if creation is fast we could be thread safe and load this for every read
+	private transient XsltTransformerPool transformers; // Thread safe, one transformer per call.
+
+	/**
+	 * Parsed ditamap properties, all items in a Release / Translation share the ditamap.
+	 */
+	private static final int DITAMAP_CACHE_MAX = 16;
+	private static final long DITAMAP_CACHE_BYTES_MAX = 32 * 1024 * 1024;
+
+	// Parsed trees are immutable, shared between concurrent transforms.
+	private final LinkedHashMap<String, Ditamap> ditamaps = new LinkedHashMap<String, Ditamap>(16, 0.75f, true); // Guarded by itself.
+	private long ditamapBytes = 0;
 
 	/**
 	 * How to get document status from already extracted fields.
@@ -91,23 +103,17 @@ public class HandlerXmlRepositem {
 		XsltCompiler compiler = processor.newXsltCompiler();
 		try {
 			logger.info("Compiling repositem indexing XSL.");
-			xsltCompiled = compiler.compile(xslt);
+			transformers = new XsltTransformerPool(compiler.compile(xslt));
 			logger.info("Compiled repositem indexing XSL.");
 		} catch (SaxonApiException e) {
 			throw new RuntimeException("Failed to compile repositem indexing XSL: " + e.getMessage(), e);
 		}
-
-		transformer = xsltCompiled.load();
 	}
 
 	public void handle(IndexingItemProgress progress, XmlSourceDocumentS9api xmlDoc) {
 
 		IndexingDoc fields = progress.getFields();
-		CmsChangesetItem processedFile = progress.getItem();
 		
-		// Ensure no previous parameters can hang around.
-		transformer.clearParameters();
-
 		XmlSourceDoctype doctype = xmlDoc.getDocType();
 		if (doctype != null) {
 			fields.setField("embd_xml_typename", doctype.getElementName());
@@ -115,6 +121,73 @@ public class HandlerXmlRepositem {
 			fields.setField("embd_xml_typesystem", doctype.getSystemID());
 		}
 		
+		// Parameters are scoped to this call, cleared when the transformer is returned.
+		XsltTransformer transformer = transformers.borrow();
+		try {
+			transform(transformer, progress, xmlDoc);
+		} finally {
+			transformers.release(transformer);
+		}
+	}
+
+	/**
+	 * @return the parsed ditamap property, cached by checksum
+	 */
+	private XdmNode getDitamap(String ditamapStr) {
+		byte[] bytes = ditamapStr.getBytes(StandardCharsets.UTF_8);
+		String key = getChecksum(bytes);
+		synchronized (ditamaps) {
+			Ditamap cached = ditamaps.get(key);
+			if (cached != null) {
+				return cached.node;
+			}
+		}
+		// Parsing outside of the lock, concurrent items may parse the same ditamap once each.
+		XdmNode node = sourceReader.read(new ByteArrayInputStream(bytes)).getDocumentNodeXdm();
+		if (bytes.length > DITAMAP_CACHE_BYTES_MAX) {
+			return node;
+		}
+		synchronized (ditamaps) {
+			Ditamap previous = ditamaps.put(key, new Ditamap(node, bytes.length));
+			if (previous != null) {
+				ditamapBytes -= previous.bytes;
+			}
+			ditamapBytes += bytes.length;
+			Iterator<Ditamap> it = ditamaps.values().iterator();
+			while ((ditamaps.size() > DITAMAP_CACHE_MAX || ditamapBytes > DITAMAP_CACHE_BYTES_MAX) && it.hasNext()) {
+				ditamapBytes -= it.next().bytes;
+				it.remove();
+			}
+		}
+		logger.debug("Parsed ditamap property ({} bytes): {}", bytes.length, key);
+		return node;
+	}
+
+	int getDitamapCacheSize() {
+		synchronized (ditamaps) {
+			return ditamaps.size();
+		}
+	}
+
+	private static String getChecksum(byte[] bytes) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not available", e);
+		}
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private void transform(XsltTransformer transformer, IndexingItemProgress progress, XmlSourceDocumentS9api xmlDoc) {
+
+		IndexingDoc fields = progress.getFields();
+		CmsChangesetItem processedFile = progress.getItem();
+
 		try {
 			XdmNode node = xmlDoc.getDocumentNodeXdm(); //Starting from the actual DOCUMENT node.
 			transformer.setInitialContextNode(node);
@@ -148,8 +221,7 @@ public class HandlerXmlRepositem {
 		final String ditamapStr = (String) fields.getFieldValue(PROPNAME_DITAMAP_FIELD_NAME);
 		if (ditamapStr != null) {
 			// The ditamap is provided as a Transform parameter.
-			XmlSourceDocumentS9api ditamap = sourceReader.read(new ByteArrayInputStream(ditamapStr.getBytes(StandardCharsets.UTF_8)));
-			transformer.setParameter(DITAMAP_PARAM, ditamap.getDocumentNodeXdm());
+			transformer.setParameter(DITAMAP_PARAM, getDitamap(ditamapStr));
 		} 
 		
 		
@@ -171,4 +243,16 @@ public class HandlerXmlRepositem {
 
 	}
 
+
+	private static class Ditamap {
+
+		final XdmNode node;
+		final long bytes;
+
+		Ditamap(XdmNode node, long bytes) {
+			this.node = node;
+			this.bytes = bytes;
+		}
+	}
+
 }
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.custom;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * Transformers for a compiled stylesheet that can be shared between threads.
+ *
+ * An {@link XsltTransformer} is not thread safe, each call borrows one and returns it
+ * when done. Parameters are cleared on return so that no values (e.g. a ditamap document)
+ * are kept between calls. At most one idle transformer per processor is kept,
+ * more are loaded when needed and discarded when returned.
+ */
+public class XsltTransformerPool {
+
+	private static final int IDLE_MAX = Runtime.getRuntime().availableProcessors();
+
+	private final XsltExecutable executable;
+	private final BlockingQueue<XsltTransformer> idle;
+
+	public XsltTransformerPool(XsltExecutable executable) {
+		this.executable = executable;
+		this.idle = new ArrayBlockingQueue<XsltTransformer>(Math.max(1, IDLE_MAX));
+	}
+
+	public XsltExecutable getExecutable() {
+		return executable;
+	}
+
+	/**
+	 * @return a transformer without parameters, must be returned using {@link #release(XsltTransformer)}
+	 */
+	public XsltTransformer borrow() {
+		XsltTransformer t = idle.poll();
+		if (t == null) {
+			t = executable.load();
+		}
+		return t;
+	}
+
+	public void release(XsltTransformer t) {
+		t.clearParameters();
+		try {
+			// Idle transformers must not keep the last document.
+			t.setInitialContextNode(null);
+			t.setDestination(null);
+		} catch (RuntimeException e) {
+			return; // Discarded.
+		}
+		idle.offer(t);
+	}
+
+	int sizeIdle() {
+		return idle.size();
+	}
+
+}
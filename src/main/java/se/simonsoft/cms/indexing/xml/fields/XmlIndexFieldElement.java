@@ -15,6 +15,14 @@
  */
 package se.simonsoft.cms.indexing.xml.fields;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,19 +43,27 @@ public class XmlIndexFieldElement implements XmlIndexFieldExtraction {
 	private static final Logger logger = LoggerFactory.getLogger(XmlIndexFieldElement.class);
 	
 	private SchemaFieldNames fieldNames = new SchemaFieldNamesReposxml();
+	
+	/**
+	 * Open elements, innermost first.
+	 */
+	private Deque<AncestorContext> open = new ArrayDeque<AncestorContext>();
 		
 	@Override
 	public void startDocument(XmlIndexProgress xmlProgress) {
-		
+		open.clear();
 	}
 	
 	public void endDocument() {
-		
+		open.clear();
 	}
 	
 	@Override
 	public void begin(XmlSourceElement element, XmlIndexElementId idProvider) throws XmlNotWellFormedException {
-		
+		if (element.isRoot()) {
+			open.clear();
+		}
+		open.push(new AncestorContext(element, idProvider, open.peek()));
 	}
 	
 	@Override
@@ -70,7 +86,7 @@ public class XmlIndexFieldElement implements XmlIndexFieldExtraction {
 		int position = location.getOrdinal();
 		doc.addField("position", position);
 		doc.addField("treelocation", location.toString());
-		addAncestorData(element, idProvider, doc);
+		addAncestorContext(element, idProvider, doc);
 		XmlSourceElement sp = element.getSiblingPreceding();
 		if (sp != null) {
 			doc.addField("id_s", idProvider.getXmlElementId(sp));
@@ -87,6 +103,58 @@ public class XmlIndexFieldElement implements XmlIndexFieldExtraction {
 	}
 	
 
+	/**
+	 * Same fields as {@link #addAncestorData(XmlSourceElement, XmlIndexElementId, IndexingDoc)} using
+	 * the contexts computed in {@link #begin(XmlSourceElement, XmlIndexElementId)}, once per level.
+	 * Values are the same, the order of field names in the doc is not.
+	 */
+	protected void addAncestorContext(XmlSourceElement element, XmlIndexElementId idProvider, IndexingDoc doc) {
+		AncestorContext self = open.peek();
+		if (self == null || !self.location.equals(element.getLocation()) || doc.containsKey("pname")) {
+			logger.debug("No ancestor context for element {}, using recursion", element.getLocation());
+			addAncestorData(element, idProvider, doc);
+			return;
+		}
+		open.pop();
+		AncestorContext parent = open.peek();
+		AncestorContext root = parent != null ? open.peekLast() : self;
+		
+		for (XmlSourceNamespace n : self.namespacesInherited) {
+			String f = "ins_" + n.getName();
+			if (!doc.containsKey(f)) {
+				doc.addField(f, n.getUri());
+			}
+		}
+		for (XmlSourceAttribute a : self.attributesInherited) {
+			String f = fieldNames.getAttributeInherited(a.getName());
+			if (!doc.containsKey(f)) {
+				doc.addField(f, a.getValue());
+			}
+		}
+		if (parent != null) {
+			// Ancestor is the parent's inherited.
+			for (XmlSourceAttribute a : parent.attributesInherited) {
+				String f = fieldNames.getAttributeAncestor(a.getName());
+				if (!doc.containsKey(f)) {
+					doc.addField(f, a.getValue());
+				}
+			}
+			doc.addField("id_p", parent.id);
+			doc.addField("pname", parent.name);
+		}
+		doc.addField("id_r", root.id);
+		doc.addField("rname", root.name);
+		for (XmlSourceAttribute a : root.attributes) {
+			doc.addField(fieldNames.getAttributeRoot(a.getName()), a.getValue());
+		}
+		if (parent != null) {
+			for (int i = 0; i < parent.names.size(); i++) {
+				doc.addField("aname", parent.names.get(i));
+				doc.addField("id_a", parent.ids.get(i));
+			}
+		}
+	}
+	
 	/**
 	 * Recursive from the actual element and up to root, aggregating field values.
 	 * @param element Initial call with the element from {@link #begin(XmlSourceElement)}
@@ -152,6 +220,77 @@ public class XmlIndexFieldElement implements XmlIndexFieldExtraction {
 		}
 	}	
 
+	/**
+	 * Fields of an open element, reused by all descendants.
+	 */
+	private class AncestorContext {
+		
+		final TreeLocation location;
+		final String name;
+		final String id;
+		final List<XmlSourceAttribute> attributes = new ArrayList<XmlSourceAttribute>();
+		/**
+		 * Self first, then the nearest ancestor, one per field.
+		 */
+		final List<XmlSourceAttribute> attributesInherited = new ArrayList<XmlSourceAttribute>();
+		final List<XmlSourceNamespace> namespacesInherited = new ArrayList<XmlSourceNamespace>();
+		/**
+		 * Root first, including self.
+		 */
+		final List<String> names;
+		final List<String> ids;
+		
+		AncestorContext(XmlSourceElement element, XmlIndexElementId idProvider, AncestorContext parent) {
+			this.location = element.getLocation();
+			this.name = element.getName();
+			this.id = idProvider.getXmlElementId(element);
+			
+			Set<String> seen = new HashSet<String>();
+			for (XmlSourceAttribute a : element.getAttributes()) {
+				if (isAttributeExcluded(a)) {
+					continue;
+				}
+				attributes.add(a);
+				if (seen.add(fieldNames.getAttributeInherited(a.getName()))) {
+					attributesInherited.add(a);
+				}
+			}
+			if (parent != null) {
+				for (XmlSourceAttribute a : parent.attributesInherited) {
+					if (seen.add(fieldNames.getAttributeInherited(a.getName()))) {
+						attributesInherited.add(a);
+					}
+				}
+			}
+			
+			seen.clear();
+			for (XmlSourceNamespace n : element.getNamespaces()) {
+				if (!isNamespaceExcluded(n) && seen.add("ins_" + n.getName())) {
+					namespacesInherited.add(n);
+				}
+			}
+			if (parent != null) {
+				for (XmlSourceNamespace n : parent.namespacesInherited) {
+					if (seen.add("ins_" + n.getName())) {
+						namespacesInherited.add(n);
+					}
+				}
+			}
+			
+			if (parent == null) {
+				this.names = Collections.singletonList(name);
+				this.ids = Collections.singletonList(id);
+			} else {
+				this.names = new ArrayList<String>(parent.names.size() + 1);
+				this.names.addAll(parent.names);
+				this.names.add(name);
+				this.ids = new ArrayList<String>(parent.ids.size() + 1);
+				this.ids.addAll(parent.ids);
+				this.ids.add(id);
+			}
+		}
+	}
+
 	private boolean isAttributeExcluded(XmlSourceAttribute a) {
 		if (a.getName().startsWith("cmsreposxml:")) {
 			return true;
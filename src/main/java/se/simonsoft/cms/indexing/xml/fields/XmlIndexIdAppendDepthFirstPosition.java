@@ -21,6 +21,12 @@ import se.simonsoft.cms.indexing.xml.XmlIndexElementId;
 import se.simonsoft.cms.xmlsource.TreeLocation;
 import se.simonsoft.cms.xmlsource.handler.XmlSourceElement;
 
+/**
+ * Element id is the item id (including revision) and the depth-first position, e.g. "repo/doc.xml@0000000002|00000003".
+ * 
+ * Since the revision is part of the id, and of id_p, id_a, id_r, id_s, every element doc changes when an item is modified.
+ * Incremental element-level updates (keeping unchanged elements) would require revision-independent ids in reposxml.
+ */
 public class XmlIndexIdAppendDepthFirstPosition implements XmlIndexElementId {
 
 	private String baseId;
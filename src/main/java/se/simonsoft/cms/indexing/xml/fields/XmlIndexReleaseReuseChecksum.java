@@ -15,15 +15,21 @@
  */
 package se.simonsoft.cms.indexing.xml.fields;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +39,7 @@ import se.repos.indexing.IndexingDoc;
 import se.repos.indexing.IndexingHandlerException;
 import se.repos.indexing.item.ItemContentBuffer;
 import se.repos.indexing.item.ItemContentBufferStrategy;
+import se.simonsoft.cms.indexing.xml.XmlIndexContentPrefetch;
 import se.simonsoft.cms.indexing.xml.XmlIndexElementId;
 import se.simonsoft.cms.indexing.xml.XmlIndexFieldExtraction;
 import se.simonsoft.cms.indexing.xml.XmlIndexProgress;
@@ -57,19 +64,43 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 	private static String RELEASE_RID_PREFIX = "reuse_rid_";
 
 	private static String RELEASE_RID_REUSEVALUE = "reuseridreusevalue";
+	private static final String[] RELEASE_RID_SHARD_FIELDS = new String[256];
+	static {
+		for (int i = 0; i < RELEASE_RID_SHARD_FIELDS.length; i++) {
+			RELEASE_RID_SHARD_FIELDS[i] = RELEASE_RID_PREFIX + String.format("%02x", i);
+		}
+	}
 
 	private static String PROP_RELEASEID = "prop_abx.ReleaseId";
 
 	private XmlSourceReaderS9api sourceReader;
 	private ItemContentBufferStrategy contentStrategy;
+	private XmlIndexContentPrefetch prefetch = null;
+	private XmlIndexRidChecksumStore store = null;
 	private TransformerServiceFactory transformerServiceFactory;
 
 	private TransformerService t;
 
-	private Map<String, String> ridChecksums = null;
+	private XmlIndexRidChecksumMap ridChecksums = null;
 	private CmsItemId releaseId = null;
 
-	private Map<CmsItemId, Map<String, String>> cache = new HashMap<>(); // Consider using Caffeine, for now only keeping one entry.
+	/**
+	 * Cache the RID-map of Releases when indexed in reposxml, see {@link #precompute(byte[], XmlSourceDocumentS9api)}.
+	 */
+	private boolean releasePrecompute = false;
+
+	private static final XmlIndexRidChecksumCache<XmlIndexRidChecksumMap> cache = new XmlIndexRidChecksumCache<XmlIndexRidChecksumMap>();
+	private static final int RELEASE_KEYS_MAX = 1000;
+
+	// Content checksum of Release at the requested revision, avoids reading the Release again.
+	// Shared like the cache, instances are per thread with XmlIndexParallel. Synchronized since access order is a modification.
+	private static final Map<CmsItemId, String> releaseKeys = Collections.synchronizedMap(new LinkedHashMap<CmsItemId, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CmsItemId, String> eldest) {
+			return size() > RELEASE_KEYS_MAX;
+		}
+	});
 	
 	private static final Logger logger = LoggerFactory.getLogger(XmlIndexReleaseReuseChecksum.class);
 
@@ -87,6 +118,65 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 		this.contentStrategy = contentStrategy;
 	}
 
+	@Inject
+	public void setContentPrefetch(XmlIndexContentPrefetch prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * @param releasePrecompute true to compute the RID-map when a Release is indexed, see {@link #precompute(byte[], XmlSourceDocumentS9api)}
+	 */
+	@Inject
+	public void setConfigIndexing(
+			@Named("se.simonsoft.cms.indexing.xml.releasePrecompute") Boolean releasePrecompute
+			) {
+		this.releasePrecompute = Boolean.TRUE.equals(releasePrecompute);
+	}
+
+	public boolean isReleasePrecompute() {
+		return releasePrecompute;
+	}
+
+	/**
+	 * @param store second tier of the RID-map cache, shared by the instances
+	 */
+	@Inject
+	public void setRidChecksumStore(XmlIndexRidChecksumStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Starts fetching the Release of a Translation, called before the Translation is parsed.
+	 * No effect unless {@link XmlIndexContentPrefetch} is configured or if the RID-map is cached.
+	 * @param baseDoc the item fields
+	 */
+	public void prefetch(IndexingDoc baseDoc) {
+		if (prefetch == null || !prefetch.isEnabled() || contentStrategy == null) {
+			return;
+		}
+		Collection<Object> pathArea = baseDoc.getFieldValues("patharea");
+		String tmProp = (String) baseDoc.getFieldValue("prop_abx.TranslationMaster");
+		Long rev = (Long) baseDoc.getFieldValue("rev");
+		// Same conditions as startDocument, which reports the errors.
+		if (pathArea == null || !pathArea.contains("translation") || tmProp == null || rev == null || baseDoc.getFieldValue("prop_abx.TranslationProject") == null) {
+			return;
+		}
+		final CmsItemId revId = new CmsItemIdArg(tmProp).withPegRev(rev);
+		String key = releaseKeys.get(revId);
+		if (key != null && cache.contains(key)) {
+			return;
+		}
+		logger.debug("Prefetching Release: {}", revId);
+		// Snapshot, the item fields are modified by the handlers while prefetching.
+		final IndexingDoc fields = baseDoc.deepCopy();
+		prefetch.prefetch(revId, new Callable<InputStream>() {
+			@Override
+			public InputStream call() throws Exception {
+				return getContents(revId, fields);
+			}
+		});
+	}
+
 	@Override
 	public void begin(XmlSourceElement processedElement, XmlIndexElementId idProvider) throws XmlNotWellFormedException {
 
@@ -139,13 +229,18 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 			
 			// Add checksums for elements with reusevalue > 0 (on root element only). Used by Pretranslate 2.0.x.
 			if (depth.equals(1)) {
-				addDescendantChecksums(fields);
+				addDescendantChecksums(fields, this.ridChecksums);
 			}
 		}
 	}
 	
 	
-	private void addDescendantChecksums(IndexingDoc fields) {
+	/**
+	 * Adds the checksum of each RID in reuseridreusevalue and the reuse_rid_ shards mapping checksum to RID.
+	 * One pass over the RIDs and a single sort by checksum, instead of a sorted map per shard.
+	 * Only checksums stored as SHA-1 are sharded, see {@link XmlIndexRidChecksumMap}.
+	 */
+	static void addDescendantChecksums(IndexingDoc fields, XmlIndexRidChecksumMap ridChecksums) {
 		
 		String ridStr = (String) fields.getFieldValue(RELEASE_RID_REUSEVALUE);
 		//logger.trace("RIDs with reusevalue > 0: {}", ridStr); // Very large logging.
@@ -154,46 +249,50 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 			return;
 		}
 		
-		List<String> rids = Arrays.asList(ridStr.split(" "));
-		logger.debug("RID count with reusevalue > 0: {}", rids.size());
-		
-		// Add checksums for elements with reusevalue > 0.
-		HashMap<String, TreeMap<String, String>> shards = new HashMap<>();
-		for (String key: rids) {
-			String checksum = this.ridChecksums.get(key);
-			if (checksum == null) {
-				logger.warn("RID has reusevalue > 0 but no checksum available in Release: {}", key);
-				continue;
+		// Add checksums for elements with reusevalue > 0, collecting the map index for sharding.
+		int[] indices = new int[Math.max(16, ridStr.length() / 16)];
+		int count = 0;
+		int ridCount = 0;
+		int length = ridStr.length();
+		for (int start = 0; start < length; start++) {
+			int end = ridStr.indexOf(' ', start);
+			if (end < 0) {
+				end = length;
 			}
-			logger.trace("RID with reusevalue > 0: {} {}", key, checksum);
-			
-			// Field (multivalue) with all valid checksums.
-			fields.addField(RELEASE_DESCENDANTS_CHECKSUM, checksum);
-			
-			// Sharding based on 2 characters. Generates total 256 fields across the whole search core. 
-			String shardKey = checksum.substring(0, 2);
-			TreeMap<String, String> shard = shards.get(shardKey);
-			if (shard == null) {
-				shard = new TreeMap<>();
-				shards.put(shardKey, shard);
+			if (end == start) {
+				continue;
 			}
-			// Mapping checksum to RID by concating them.
-			String hashRid = checksum + " " + key;
-			
-			// Index the first instance when there are elements with identical checksum.
-			if (!shard.containsKey(checksum)) {
-				shard.put(checksum, hashRid);
-				//logger.info("Added checksum map field {}", fieldname);
+			ridCount++;
+			int index = ridChecksums.indexOf(ridStr, start, end);
+			if (index >= 0) {
+				// Field (multivalue) with all valid checksums.
+				fields.addField(RELEASE_DESCENDANTS_CHECKSUM, ridChecksums.getChecksum(index));
+				if (count == indices.length) {
+					indices = Arrays.copyOf(indices, count * 2);
+				}
+				indices[count++] = index;
+			} else {
+				String key = ridStr.substring(start, end);
+				String checksum = ridChecksums.get(key);
+				if (checksum == null) {
+					logger.warn("RID has reusevalue > 0 but no checksum available in Release: {}", key);
+				} else {
+					fields.addField(RELEASE_DESCENDANTS_CHECKSUM, checksum);
+				}
 			}
+			start = end;
 		}
-		// Add the shards as SortedSets to indexing.
-		for (String shardKey: shards.keySet()) {
-			String fieldName = RELEASE_RID_PREFIX.concat(shardKey);
-			TreeMap<String, String> shardContent = shards.get(shardKey);
-			// The TreeMap will return the values in sorted order (key is prefix of the value).
-			for (String v: shardContent.values()) { 
-				fields.addField(fieldName, v);
+		logger.debug("RID count with reusevalue > 0: {}", ridCount);
+		
+		// Sharding based on 2 characters. Generates total 256 fields across the whole search core.
+		// Mapping checksum to RID by concating them, sorted by checksum within each shard.
+		ridChecksums.sortByChecksum(indices, count);
+		for (int i = 0; i < count; i++) {
+			// Index the first instance when there are elements with identical checksum (stable sort).
+			if (i > 0 && ridChecksums.isChecksumEqual(indices[i - 1], indices[i])) {
+				continue;
 			}
+			fields.addField(RELEASE_RID_SHARD_FIELDS[ridChecksums.getChecksumPrefix(indices[i])], ridChecksums.getChecksumRid(indices[i]));
 		}
 	}
 
@@ -233,28 +332,45 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 		// The version of Release requested must be same as indexed (Release is same commit or most recent).
 		// Ensures identical result after re-indexing even if Release has been updated (must iterate Translation if updated Release checksums are desirable).
 		CmsItemId revId = tmId.withPegRev(rev);
-		// TODO: Get the commit revision of the Release in order to determine a cache key.
-		// For now, using the indexed revision (Translation commit) due to lack of APIs.
-		// Works for Translations committed in same transaction.
-		// Using Release commit revision would work across indexed revision (e.g. Pretranslate completing each item).
+		// TODO: Get the commit revision of the Release in order to avoid reading it at each indexed revision.
+		// The RID-map cache is keyed on the Release content, works across indexed revision (e.g. Pretranslate completing each item).
 		
 		this.ridChecksums = getChecksumMap(xmlProgress, revId);
 		this.releaseId = tmId;
 		
 	}
 	
-	private Map<String, String> getChecksumMap(XmlIndexProgress xmlProgress, CmsItemId revId) {
-		// TODO: #1703 Can we get the checksum of an itemid?
-		Map<String, String> result = doCacheGet(revId);
+	private XmlIndexRidChecksumMap getChecksumMap(XmlIndexProgress xmlProgress, CmsItemId revId) {
+		// TODO: #1703 Can we get the checksum of an itemid? Would avoid reading the Release when requested at a new revision.
+		String key = releaseKeys.get(revId);
+		XmlIndexRidChecksumMap result = key != null && cache.contains(key) ? cache.get(key) : null;
 		if (result != null) {
 			logger.info("RID-map cache hit ({}) for Release: {}", result.size(), revId);
+			if (prefetch != null) {
+				prefetch.discard(revId);
+			}
 			return result;
 		}
 		
 		Date start = new Date();
 		XmlSourceDocumentS9api docReuse;
 		try {
-			docReuse = getDocumentChecksum(xmlProgress, revId);
+			byte[] content = getContent(xmlProgress, revId);
+			key = getCacheKey(getContentDigest().digest(content));
+			result = cache.get(key);
+			if (result != null) {
+				releaseKeys.put(revId, key);
+				logger.info("RID-map cache hit on content ({}) for Release: {}", result.size(), revId);
+				return result;
+			}
+			result = store != null ? store.get(key) : null;
+			if (result != null) {
+				cache.put(key, result, result.getWeight());
+				releaseKeys.put(revId, key);
+				logger.info("RID-map store hit ({}) for Release: {}", result.size(), revId);
+				return result;
+			}
+			docReuse = getDocumentChecksum(sourceReader.read(new ByteArrayInputStream(content)));
 		} catch (UnsupportedOperationException e) {
 			throw new RuntimeException("The indexing backend can not support this handler.", e);
 		} catch (Exception e) {
@@ -263,23 +379,45 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 			throw new IndexingHandlerException(msg);
 		}
 
-		XmlSourceAttributeMapRid map = new XmlSourceAttributeMapRid("c_sha1_source_reuse");
-		sourceReader.handle(docReuse, map);
-		result = map.getAttributeMap();
+		result = getRidChecksums(docReuse);
 		Date end = new Date();
 		logger.info("RID-map processed ({}) in {} ms for Release: {}", result.size(), end.getTime() - start.getTime(), revId);
-		// Send to a cache.
-		doCachePut(revId, result);
+		// Only complete maps are sent to the cache.
+		cache.put(key, result, result.getWeight());
+		releaseKeys.put(revId, key);
+		doStorePut(key, result);
+		logger.debug("RID-map cache: {}", cache);
 		
 		return result;
 	}
 
-	private XmlSourceDocumentS9api getDocumentChecksum(XmlIndexProgress xmlProgress, CmsItemId itemId) {
+	private byte[] getContent(XmlIndexProgress xmlProgress, CmsItemId itemId) throws IOException {
 
 		// Possible to use the XmlSourceReader in combination with the Indexing Content Buffer concept.
 		// The ItemContentBuffer implementation is injected in a per-repo context, same with Handlers.
-		ItemContentBuffer releaseBuffer = contentStrategy.getBuffer(new RepoRevision(itemId.getPegRev(), null), itemId.getRelPath(), xmlProgress.getBaseDoc());
-		XmlSourceDocumentS9api releaseDoc = sourceReader.read(releaseBuffer.getContents());
+		InputStream contents = prefetch != null ? prefetch.take(itemId) : null;
+		if (contents == null) {
+			contents = getContents(itemId, xmlProgress.getBaseDoc());
+		}
+		try (InputStream in = contents) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * Called from the prefetch threads and the extraction threads.
+	 * The buffer strategy is not specified as thread-safe, so buffers are opened one at a time.
+	 * Reading the contents is not serialized, each buffer has its own stream.
+	 */
+	private InputStream getContents(CmsItemId itemId, IndexingDoc baseDoc) {
+		synchronized (contentStrategy) {
+			ItemContentBuffer releaseBuffer = contentStrategy.getBuffer(new RepoRevision(itemId.getPegRev(), null), itemId.getRelPath(), baseDoc);
+			return releaseBuffer.getContents();
+		}
+	}
+
+	private XmlSourceDocumentS9api getDocumentChecksum(XmlSourceDocumentS9api releaseDoc) {
+
 		XmlSourceElementS9api releaseElement = releaseDoc.getDocumentElement();
 		// Execute Transform that calculates checksums on Release.
 		
@@ -293,16 +431,77 @@ public class XmlIndexReleaseReuseChecksum implements XmlIndexFieldExtraction {
 		return docReuse;
 	}
 	
-	private void doCachePut(CmsItemId release, Map<String, String> map) {
-		this.cache.clear(); // Keeping only a single item for now.
-		this.cache.put(release, map);
+	private XmlIndexRidChecksumMap getRidChecksums(XmlSourceDocumentS9api docReuse) {
+		
+		XmlSourceAttributeMapRid map = new XmlSourceAttributeMapRid("c_sha1_source_reuse");
+		sourceReader.handle(docReuse, map);
+		return new XmlIndexRidChecksumMap(map.getAttributeMap());
 	}
 	
-	private Map<String, String> doCacheGet(CmsItemId release) {
-		// TODO: #1703 Cache based in sha1 instead, frequently missing the cache due to rev based on the translation.
-		return this.cache.get(release);
+	/**
+	 * @return digest for the Release content, identifies cached RID-maps
+	 */
+	public static MessageDigest getContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 not available", e);
+		}
+	}
+	
+	/**
+	 * @return content checksum, prefixed with the checksum algorithm of the maps (reuse-normalize.xsl)
+	 */
+	static String getCacheKey(byte[] contentDigest) {
+		return "xsl:" + XmlIndexRidChecksumMap.toHex(contentDigest);
 	}
 	
+	/**
+	 * @return the RID-map cache shared by all instances, for statistics
+	 */
+	public static XmlIndexRidChecksumCache<XmlIndexRidChecksumMap> getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Caches the RID-map of a Release when the Release itself is indexed, if configured.
+	 * Same Release transform and same key as when a Translation reads the Release.
+	 *
+	 * Trade-off: indexing a Release runs reuse-normalize twice, once for reposxml and once here.
+	 * The normalized reposxml document can not be reused, the Release transform runs with preserve-text,
+	 * preserve-comment and preserve-pi off, so its checksums are not in general the reposxml c_sha1_source_reuse values.
+	 * The extra transform makes Release indexing slower in exchange for Translations not reading and
+	 * transforming the Release, worthwhile when Releases are translated (several Translations or revisions per Release).
+	 * Nothing is done if the map is already in the cache or in the store.
+	 * @param contentDigest from {@link #getContentDigest()} of the complete Release content
+	 * @param releaseDoc the Release as read, before any reposxml transform
+	 */
+	public void precompute(byte[] contentDigest, XmlSourceDocumentS9api releaseDoc) {
+		String key = getCacheKey(contentDigest);
+		if (cache.contains(key)) {
+			logger.debug("RID-map already cached: {}", key);
+			return;
+		}
+		XmlIndexRidChecksumMap map = store != null ? store.get(key) : null;
+		if (map != null) {
+			logger.debug("RID-map already stored: {}", key);
+			cache.put(key, map, map.getWeight());
+			return;
+		}
+		Date start = new Date();
+		map = getRidChecksums(getDocumentChecksum(releaseDoc));
+		Date end = new Date();
+		logger.info("RID-map precomputed ({}) in {} ms: {}", map.size(), end.getTime() - start.getTime(), key);
+		cache.put(key, map, map.getWeight());
+		doStorePut(key, map);
+		logger.debug("RID-map cache: {}", cache);
+	}
+
+	private void doStorePut(String key, XmlIndexRidChecksumMap map) {
+		if (store != null) {
+			store.put(key, map);
+		}
+	}
 
 	@Override
 	public void endDocument() {
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RID-maps of Releases, shared by the extractor instances.
+ *
+ * Entries are keyed by the checksum of the Release content, a Release is processed
+ * once regardless of the revision it is requested at.
+ *
+ * Evicts least recently used entries when the total weight (estimated heap bytes)
+ * exceeds the max weight (256 MB by default). Entries are only added when completely processed,
+ * the values must not be modified.
+ */
+public class XmlIndexRidChecksumCache<V> {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexRidChecksumCache.class);
+
+	private static final long WEIGHT_MAX = 256 * 1024 * 1024;
+
+	private final long weightMax;
+
+	private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+
+	private long weight = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public XmlIndexRidChecksumCache() {
+		this(WEIGHT_MAX);
+	}
+
+	/**
+	 * @param weightMax estimated heap bytes
+	 */
+	public XmlIndexRidChecksumCache(long weightMax) {
+		this.weightMax = weightMax;
+	}
+
+	/**
+	 * @param key content checksum
+	 */
+	public synchronized V get(String key) {
+		Entry<V> e = entries.get(key);
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return e.value;
+	}
+
+	/**
+	 * @return true if cached, without affecting eviction order or metrics
+	 */
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @param weight estimated heap size, values above the max weight are not cached
+	 */
+	public synchronized void put(String key, V value, long weight) {
+		if (weight > weightMax) {
+			logger.info("RID-map cache skipping entry with weight {} gt {}: {}", weight, weightMax, key);
+			return;
+		}
+		Entry<V> previous = entries.put(key, new Entry<V>(value, weight));
+		if (previous != null) {
+			this.weight -= previous.weight;
+		}
+		this.weight += weight;
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while (this.weight > weightMax && it.hasNext()) {
+			Entry<V> eldest = it.next();
+			it.remove();
+			this.weight -= eldest.weight;
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entries=" + entries.size() + " weight=" + weight + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+	}
+
+
+	private static class Entry<V> {
+
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+}
@@ -0,0 +1,416 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only map from RID to SHA-1 checksum, compact for Releases with a large number of RIDs.
+ *
+ * RIDs are stored in a single char array and checksums as 20 bytes each, indexed by an
+ * open-addressing table. Lookups do not allocate, hex strings are created when requested.
+ * Values that are not a hex SHA-1 (e.g. empty) are kept as is in a small map.
+ */
+public class XmlIndexRidChecksumMap {
+
+	private static final int CHECKSUM_BYTES = 20;
+	private static final int SERIAL_HEADER = 4 * 4;
+	private static final int SORT_PREFIX_BYTES = 5;
+	private static final int SORT_POSITION_BITS = 63 - SORT_PREFIX_BYTES * 8;
+	private static final long SORT_POSITION_MASK = (1L << SORT_POSITION_BITS) - 1;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final int size;
+	private final char[] rids;
+	private final int[] offsets;
+	private final byte[] checksums;
+	private final int[] table; // Index + 1, 0 when empty.
+	private final Map<String, String> other;
+
+	public XmlIndexRidChecksumMap(Map<String, String> map) {
+		int chars = 0;
+		for (String rid : map.keySet()) {
+			chars += rid.length();
+		}
+		char[] r = new char[chars];
+		int[] o = new int[map.size() + 1];
+		byte[] c = new byte[map.size() * CHECKSUM_BYTES];
+		int capacity = 2;
+		while (capacity < map.size() * 2) {
+			capacity <<= 1;
+		}
+		this.table = new int[capacity];
+
+		Map<String, String> irregular = new HashMap<String, String>();
+		int n = 0;
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			String rid = e.getKey();
+			if (!isChecksum(e.getValue())) {
+				irregular.put(rid, e.getValue());
+				continue;
+			}
+			rid.getChars(0, rid.length(), r, o[n]);
+			o[n + 1] = o[n] + rid.length();
+			parseHex(e.getValue(), c, n * CHECKSUM_BYTES);
+			insert(n, rid.hashCode());
+			n++;
+		}
+		this.size = n;
+		this.other = irregular.isEmpty() ? null : irregular;
+		if (other != null) {
+			r = Arrays.copyOf(r, o[n]);
+			o = Arrays.copyOf(o, n + 1);
+			c = Arrays.copyOf(c, n * CHECKSUM_BYTES);
+		}
+		this.rids = r;
+		this.offsets = o;
+		this.checksums = c;
+	}
+
+	private XmlIndexRidChecksumMap(int size, char[] rids, int[] offsets, byte[] checksums, int[] table, Map<String, String> other) {
+		this.size = size;
+		this.rids = rids;
+		this.offsets = offsets;
+		this.checksums = checksums;
+		this.table = table;
+		this.other = other;
+	}
+
+	private void insert(int index, int hash) {
+		int mask = table.length - 1;
+		int i = spread(hash) & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = index + 1;
+	}
+
+	/**
+	 * @return index of the RID with a SHA-1 checksum, -1 if not found
+	 */
+	public int indexOf(String rid) {
+		return indexOf(rid, 0, rid.length(), rid.hashCode());
+	}
+
+	/**
+	 * @return index of the RID at start (inclusive) to end (exclusive), -1 if not found
+	 */
+	public int indexOf(CharSequence s, int start, int end) {
+		// Same as String.hashCode.
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + s.charAt(i);
+		}
+		return indexOf(s, start, end, hash);
+	}
+
+	private int indexOf(CharSequence s, int start, int end, int hash) {
+		int mask = table.length - 1;
+		int i = spread(hash) & mask;
+		int t;
+		while ((t = table[i]) != 0) {
+			if (equalsAt(t - 1, s, start, end)) {
+				return t - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return hex checksum, null if the RID is not in the map
+	 */
+	public String get(String rid) {
+		int index = indexOf(rid);
+		if (index >= 0) {
+			return getChecksum(index);
+		}
+		return other != null ? other.get(rid) : null;
+	}
+
+	public boolean containsKey(String rid) {
+		return indexOf(rid) >= 0 || (other != null && other.containsKey(rid));
+	}
+
+	/**
+	 * @param index from {@link #indexOf(String)}
+	 * @return hex checksum
+	 */
+	public String getChecksum(int index) {
+		char[] hex = new char[CHECKSUM_BYTES * 2];
+		writeHex(index, hex);
+		return new String(hex);
+	}
+
+	/**
+	 * @return hex checksum, a space and the RID
+	 */
+	public String getChecksumRid(int index) {
+		int start = offsets[index];
+		int length = offsets[index + 1] - start;
+		char[] c = new char[CHECKSUM_BYTES * 2 + 1 + length];
+		writeHex(index, c);
+		c[CHECKSUM_BYTES * 2] = ' ';
+		System.arraycopy(rids, start, c, CHECKSUM_BYTES * 2 + 1, length);
+		return new String(c);
+	}
+
+	/**
+	 * @return the first byte of the checksum, 0-255
+	 */
+	public int getChecksumPrefix(int index) {
+		return checksums[index * CHECKSUM_BYTES] & 0xff;
+	}
+
+	/**
+	 * @return true if the checksums are equal
+	 */
+	public boolean isChecksumEqual(int index1, int index2) {
+		return compareChecksum(index1, index2) == 0;
+	}
+
+	/**
+	 * Stable sort of indices by checksum, same order as the hex strings.
+	 * @param indices from {@link #indexOf(String)}
+	 * @param length number of indices to sort
+	 */
+	public void sortByChecksum(int[] indices, int length) {
+		if (length > SORT_POSITION_MASK) {
+			throw new IllegalArgumentException("Too many RIDs to sort: " + length);
+		}
+		// Primitive sort on the first 5 checksum bytes and the position, which keeps the sort stable.
+		long[] keys = new long[length];
+		for (int i = 0; i < length; i++) {
+			int p = indices[i] * CHECKSUM_BYTES;
+			long prefix = 0;
+			for (int k = 0; k < SORT_PREFIX_BYTES; k++) {
+				prefix = (prefix << 8) | (checksums[p + k] & 0xff);
+			}
+			keys[i] = (prefix << SORT_POSITION_BITS) | i;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[length];
+		for (int i = 0; i < length; i++) {
+			sorted[i] = indices[(int) (keys[i] & SORT_POSITION_MASK)];
+		}
+		// Full comparison within the (rare) runs of equal prefix, insertion sort is stable.
+		int run = 0;
+		for (int i = 1; i <= length; i++) {
+			if (i < length && (keys[i] >>> SORT_POSITION_BITS) == (keys[run] >>> SORT_POSITION_BITS)) {
+				continue;
+			}
+			for (int j = run + 1; j < i; j++) {
+				int v = sorted[j];
+				int k = j - 1;
+				while (k >= run && compareChecksum(sorted[k], v) > 0) {
+					sorted[k + 1] = sorted[k];
+					k--;
+				}
+				sorted[k + 1] = v;
+			}
+			run = i;
+		}
+		System.arraycopy(sorted, 0, indices, 0, length);
+	}
+
+	private int compareChecksum(int index1, int index2) {
+		int p1 = index1 * CHECKSUM_BYTES;
+		int p2 = index2 * CHECKSUM_BYTES;
+		for (int i = 0; i < CHECKSUM_BYTES; i++) {
+			int d = (checksums[p1 + i] & 0xff) - (checksums[p2 + i] & 0xff);
+			if (d != 0) {
+				return d;
+			}
+		}
+		return 0;
+	}
+
+	private void writeHex(int index, char[] target) {
+		int p = index * CHECKSUM_BYTES;
+		for (int i = 0; i < CHECKSUM_BYTES; i++) {
+			target[i * 2] = HEX[(checksums[p + i] >> 4) & 0xf];
+			target[i * 2 + 1] = HEX[checksums[p + i] & 0xf];
+		}
+	}
+
+	public int size() {
+		return size + (other != null ? other.size() : 0);
+	}
+
+	/**
+	 * @return heap size in bytes, approximately
+	 */
+	public long getWeight() {
+		long weight = 128 + rids.length * 2L + offsets.length * 4L + checksums.length + table.length * 4L;
+		if (other != null) {
+			for (Map.Entry<String, String> e : other.entrySet()) {
+				weight += 48 + 2 * 48 + 2 * (e.getKey().length() + e.getValue().length());
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * @return bytes written by {@link #write(ByteBuffer)}
+	 */
+	int getSerializedSize() {
+		long bytes = SERIAL_HEADER + offsets.length * 4L + rids.length * 2L + checksums.length + table.length * 4L + 4;
+		if (other != null) {
+			for (Map.Entry<String, String> e : other.entrySet()) {
+				bytes += 8 + 2 * (e.getKey().length() + e.getValue().length());
+			}
+		}
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("RID-map too large to serialize: " + bytes);
+		}
+		return (int) bytes;
+	}
+
+	void write(ByteBuffer b) {
+		b.putInt(size);
+		b.putInt(table.length);
+		b.putInt(rids.length);
+		b.putInt(checksums.length);
+		b.asIntBuffer().put(offsets);
+		b.position(b.position() + offsets.length * 4);
+		b.asCharBuffer().put(rids);
+		b.position(b.position() + rids.length * 2);
+		b.put(checksums);
+		b.asIntBuffer().put(table);
+		b.position(b.position() + table.length * 4);
+		b.putInt(other != null ? other.size() : 0);
+		if (other != null) {
+			for (Map.Entry<String, String> e : other.entrySet()) {
+				putString(b, e.getKey());
+				putString(b, e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the buffer is not a valid RID-map
+	 */
+	static XmlIndexRidChecksumMap read(ByteBuffer b) {
+		try {
+			int size = b.getInt();
+			int capacity = b.getInt();
+			int chars = b.getInt();
+			int checksumBytes = b.getInt();
+			if (size < 0 || Integer.bitCount(capacity) != 1 || capacity < size * 2 || chars < 0 || checksumBytes != size * CHECKSUM_BYTES) {
+				throw new IllegalArgumentException("Invalid RID-map header");
+			}
+			int[] offsets = new int[size + 1];
+			b.asIntBuffer().get(offsets);
+			b.position(b.position() + offsets.length * 4);
+			char[] rids = new char[chars];
+			b.asCharBuffer().get(rids);
+			b.position(b.position() + chars * 2);
+			byte[] checksums = new byte[checksumBytes];
+			b.get(checksums);
+			int[] table = new int[capacity];
+			b.asIntBuffer().get(table);
+			b.position(b.position() + capacity * 4);
+			if (offsets[0] != 0 || offsets[size] != chars) {
+				throw new IllegalArgumentException("Invalid RID-map offsets");
+			}
+			int otherSize = b.getInt();
+			Map<String, String> other = null;
+			if (otherSize > 0) {
+				other = new HashMap<String, String>();
+				for (int i = 0; i < otherSize; i++) {
+					other.put(getString(b), getString(b));
+				}
+			}
+			return new XmlIndexRidChecksumMap(size, rids, offsets, checksums, table, other);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated RID-map", e);
+		}
+	}
+
+	private static void putString(ByteBuffer b, String s) {
+		b.putInt(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			b.putChar(s.charAt(i));
+		}
+	}
+
+	private static String getString(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0 || length * 2 > b.remaining()) {
+			throw new IllegalArgumentException("Invalid RID-map string length");
+		}
+		char[] c = new char[length];
+		b.asCharBuffer().get(c);
+		b.position(b.position() + length * 2);
+		return new String(c);
+	}
+
+	private boolean equalsAt(int index, CharSequence s, int start, int end) {
+		int p = offsets[index];
+		int length = offsets[index + 1] - p;
+		if (length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (rids[p + i] != s.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int spread(int hash) {
+		// RIDs are sequential, their String hashes cluster badly with linear probing.
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean isChecksum(String value) {
+		if (value == null || value.length() != CHECKSUM_BYTES * 2) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false; // Upper case would not be preserved.
+			}
+		}
+		return true;
+	}
+
+	static String toHex(byte[] d) {
+		char[] c = new char[d.length * 2];
+		for (int i = 0; i < d.length; i++) {
+			c[i * 2] = HEX[(d[i] >> 4) & 0xf];
+			c[i * 2 + 1] = HEX[d[i] & 0xf];
+		}
+		return new String(c);
+	}
+
+	private static void parseHex(String hex, byte[] target, int offset) {
+		for (int i = 0; i < CHECKSUM_BYTES; i++) {
+			target[offset + i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4) | Character.digit(hex.charAt(i * 2 + 1), 16));
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier for {@link XmlIndexRidChecksumCache}, keeps RID-maps on disk across restarts.
+ *
+ * One memory-mapped file per Release content checksum, with a CRC32 trailer that is verified
+ * when read. A file that fails verification is deleted and treated as a miss. Least recently
+ * used files (by modification time, updated when read) are deleted above the max size.
+ *
+ * One instance is shared by the extractor instances.
+ */
+@Singleton
+public class XmlIndexRidChecksumStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexRidChecksumStore.class);
+
+	private static final long SIZE_MAX = 1024 * 1024 * 1024;
+
+	static final String SUFFIX = ".ridmap";
+	private static final int MAGIC = 0x52494431; // RID1
+	private static final int TRAILER = 8;
+
+	private final File dir;
+	private final long sizeMax;
+	private long size = -1; // Guarded by this, computed when first needed.
+
+	/**
+	 * @param directory folder for the store, empty disables
+	 */
+	@Inject
+	public XmlIndexRidChecksumStore(@Named("se.simonsoft.cms.indexing.xml.ridmapDir") String directory) {
+		this(directory == null || directory.isEmpty() ? null : new File(directory), SIZE_MAX);
+	}
+
+	/**
+	 * @param dir null disables the store
+	 * @param sizeMax total size of the files
+	 */
+	XmlIndexRidChecksumStore(File dir, long sizeMax) {
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Failed to create RID-map store: " + dir);
+		}
+		this.dir = dir;
+		this.sizeMax = sizeMax;
+		if (dir != null) {
+			logger.info("Using RID-map store: {}", dir);
+		}
+	}
+
+	public boolean isEnabled() {
+		return dir != null;
+	}
+
+	/**
+	 * @param key from the heap cache, content checksum
+	 * @return null if not stored or invalid, or if the store is disabled
+	 */
+	public XmlIndexRidChecksumMap get(String key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < TRAILER + 4 || length > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Invalid length " + length);
+			}
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			ByteBuffer content = b.duplicate();
+			content.limit((int) length - TRAILER);
+			CRC32 crc = new CRC32();
+			crc.update(content.duplicate());
+			if (crc.getValue() != b.getLong((int) length - TRAILER)) {
+				throw new IllegalArgumentException("Checksum mismatch");
+			}
+			if (content.getInt() != MAGIC) {
+				throw new IllegalArgumentException("Unsupported format");
+			}
+			XmlIndexRidChecksumMap map = XmlIndexRidChecksumMap.read(content);
+			if (!file.setLastModified(System.currentTimeMillis())) {
+				logger.debug("Failed to update access time of RID-map: {}", file);
+			}
+			return map;
+		} catch (IOException e) {
+			logger.warn("Failed to read RID-map {}: {}", file, e.getMessage());
+			return null;
+		} catch (IllegalArgumentException e) {
+			logger.warn("Deleting invalid RID-map {}: {}", file, e.getMessage());
+			delete(file);
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces atomically, failures are logged since the store is only a cache. No-op if the store is disabled.
+	 */
+	public void put(String key, XmlIndexRidChecksumMap map) {
+		if (!isEnabled()) {
+			return;
+		}
+		File file = getFile(key);
+		File tmp = new File(dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+		int length = 4 + map.getSerializedSize() + TRAILER;
+		try {
+			try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+				b.putInt(MAGIC);
+				map.write(b);
+				ByteBuffer content = b.duplicate();
+				content.flip();
+				CRC32 crc = new CRC32();
+				crc.update(content);
+				b.putLong(crc.getValue());
+				b.force();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Failed to store RID-map {}: {}", file, e.getMessage());
+			delete(tmp);
+			return;
+		}
+		added(length);
+	}
+
+	private synchronized void added(long length) {
+		if (size < 0) {
+			size = 0;
+			for (File f : list()) {
+				size += f.length();
+			}
+		} else {
+			size += length;
+		}
+		if (size > sizeMax) {
+			evict();
+		}
+	}
+
+	private void evict() {
+		File[] files = list();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		size = 0;
+		for (File f : files) {
+			size += f.length();
+		}
+		for (int i = 0; i < files.length && size > sizeMax; i++) {
+			long length = files[i].length();
+			if (delete(files[i])) {
+				size -= length;
+				logger.debug("Evicted RID-map: {}", files[i]);
+			}
+		}
+	}
+
+	private File[] list() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		return files != null ? files : new File[0];
+	}
+
+	private boolean delete(File file) {
+		try {
+			return Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			logger.warn("Failed to delete RID-map {}: {}", file, e.getMessage());
+			return false;
+		}
+	}
+
+	File getFile(String key) {
+		// Keys are algorithm and hex digest.
+		return new File(dir, key.replaceAll("[^A-Za-z0-9]", "-") + SUFFIX);
+	}
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import se.repos.indexing.solrj.SolrAdd;
+import se.repos.indexing.solrj.SolrDelete;
+import se.repos.indexing.solrj.SolrDeleteByQuery;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexIdAppendDepthFirstPosition;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexSendPool;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexWriterSolrj;
+
+/**
+ * Bulk imports an export written by {@link XmlIndexWriterFile} into a reposxml core.
+ *
+ * Segments are read in manifest order, adds are sent in the background and
+ * awaited before each delete so that the changeset order is kept. Does not commit.
+ */
+public class XmlIndexFileLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexFileLoader.class);
+
+	private static final int BATCH_DOCS = 1000;
+	private static final int THREADS = 4;
+
+	private static final int DELETE_PAGE_SIZE = 1000;
+
+	private final SolrClient core;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	public XmlIndexFileLoader(SolrClient core) {
+		this.core = core;
+	}
+
+	/**
+	 * @param dir containing a complete export
+	 * @return number of docs added
+	 */
+	public long load(File dir) {
+		JsonNode manifest;
+		try {
+			manifest = mapper.readTree(new File(dir, XmlIndexWriterFile.MANIFEST));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to read manifest in: " + dir, e);
+		}
+		if (manifest.path("version").asInt() != XmlIndexWriterFile.VERSION) {
+			throw new IllegalArgumentException("Unsupported export version: " + manifest.path("version"));
+		}
+		if (!manifest.path("complete").asBoolean()) {
+			throw new IllegalArgumentException("Export is not complete: " + dir);
+		}
+
+		XmlIndexSendPool pool = new XmlIndexSendPool(THREADS, THREADS);
+		long start = System.currentTimeMillis();
+		long docs = 0;
+		for (JsonNode segment : manifest.path("segments")) {
+			docs += loadSegment(new File(dir, segment.path("name").asText()), segment.path("docs").asLong(), pool);
+		}
+		pool.awaitCompletion();
+		logger.info("Loaded {} docs from {} in {} ms", docs, dir, System.currentTimeMillis() - start);
+		return docs;
+	}
+
+	private long loadSegment(File file, long expected, XmlIndexSendPool pool) {
+		long docs = 0;
+		List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_DOCS);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				JsonNode node = mapper.readTree(line);
+				JsonNode delete = node.get(XmlIndexWriterFile.DELETE_KEY);
+				if (delete != null) {
+					send(batch, pool);
+					batch = new ArrayList<SolrInputDocument>(BATCH_DOCS);
+					pool.awaitCompletion();
+					delete(delete);
+					continue;
+				}
+				batch.add(toSolrDoc(node));
+				docs++;
+				if (batch.size() >= BATCH_DOCS) {
+					send(batch, pool);
+					batch = new ArrayList<SolrInputDocument>(BATCH_DOCS);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read segment: " + file, e);
+		}
+		send(batch, pool);
+		if (docs != expected) {
+			throw new IllegalStateException("Segment " + file.getName() + " has " + docs + " docs, manifest " + expected);
+		}
+		logger.info("Loaded segment {} with {} docs", file.getName(), docs);
+		return docs;
+	}
+
+	private void send(final List<SolrInputDocument> batch, XmlIndexSendPool pool) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		pool.submit(getKey(batch), new Runnable() {
+			@Override
+			public void run() {
+				new SolrAdd(core, batch).run();
+			}
+		});
+	}
+
+	private String getKey(List<SolrInputDocument> batch) {
+		Object pathfull = batch.get(0).getFieldValue("pathfull");
+		return pathfull != null ? pathfull.toString() : "";
+	}
+
+	private void delete(JsonNode delete) {
+		if (delete.has("idBase")) {
+			String idBase = delete.get("idBase").asText();
+			long count = delete.get("count").asLong();
+			long pages = (count + DELETE_PAGE_SIZE - 1) / DELETE_PAGE_SIZE;
+			for (long page = pages - 1; page >= 0; page--) { // Reverse to ensure that depth=1 is deleted last.
+				LinkedList<String> ids = new LinkedList<String>();
+				long last = Math.min(count, DELETE_PAGE_SIZE * (page + 1));
+				for (long i = DELETE_PAGE_SIZE * page + 1; i <= last; i++) {
+					ids.add(idBase + XmlIndexIdAppendDepthFirstPosition.getElementId(i));
+				}
+				new SolrDelete(core, ids).run();
+			}
+		} else {
+			String pathfull = delete.get("pathfull").asText();
+			new SolrDeleteByQuery(core, "pathfull:" + XmlIndexWriterSolrj.quote(pathfull)).run();
+		}
+	}
+
+	SolrInputDocument toSolrDoc(JsonNode node) {
+		SolrInputDocument doc = new SolrInputDocument();
+		Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> f = fields.next();
+			if (f.getValue().isArray()) {
+				for (JsonNode v : f.getValue()) {
+					doc.addField(f.getKey(), toValue(v));
+				}
+			} else {
+				doc.setField(f.getKey(), toValue(f.getValue()));
+			}
+		}
+		return doc;
+	}
+
+	private Object toValue(JsonNode v) {
+		if (v.isInt()) {
+			return v.intValue();
+		}
+		if (v.isIntegralNumber()) {
+			return v.longValue();
+		}
+		if (v.isNumber()) {
+			return v.doubleValue();
+		}
+		if (v.isBoolean()) {
+			return v.booleanValue();
+		}
+		if (v.isNull()) {
+			return null;
+		}
+		return v.asText();
+	}
+
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.file;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.indexing.xml.XmlIndexAddSession;
+import se.simonsoft.cms.indexing.xml.XmlIndexWriter;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexIdAppendDepthFirstPosition;
+import se.simonsoft.cms.indexing.xml.solr.XmlIndexElementCountStore;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
+
+/**
+ * Writes reposxml element docs to gzip compressed NDJSON segments instead of Solr,
+ * separating extraction throughput from Solr ingest during full rebuilds.
+ *
+ * One JSON object per line, a doc or a delete ({@value #DELETE_KEY}). The manifest
+ * lists completed segments and is marked complete by {@link #close()}.
+ * Import using {@link XmlIndexFileLoader}.
+ */
+public class XmlIndexWriterFile implements XmlIndexWriter {
+
+	public static final String MANIFEST = "manifest.json";
+	public static final String SEGMENT_SUFFIX = ".ndjson.gz";
+	public static final String DELETE_KEY = "_delete";
+	public static final int VERSION = 1;
+
+	/**
+	 * Uncompressed size when rotating to the next segment.
+	 */
+	private static final long SEGMENT_SIZE_MAX = 256 * 1024 * 1024;
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexWriterFile.class);
+
+	private static final int ELEMENT_ID_LENGTH = XmlIndexIdAppendDepthFirstPosition.getElementId(1).length();
+
+	private final File dir;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final XmlIndexElementCountStore elementCounts = new XmlIndexElementCountStore();
+
+	private final List<ObjectNode> segments = new ArrayList<ObjectNode>();
+
+	// Current segment, guarded by this.
+	private CountingOutputStream segmentBytes = null;
+	private JsonGenerator segment = null;
+	private String segmentName = null;
+	private long segmentDocs = 0;
+	private long segmentDeletes = 0;
+	private boolean closed = false;
+
+	public XmlIndexWriterFile(File dir) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("Failed to create directory: " + dir);
+		}
+		if (new File(dir, MANIFEST).exists()) {
+			throw new IllegalArgumentException("Directory already contains a reposxml export: " + dir);
+		}
+		this.dir = dir;
+	}
+
+	@Override
+	public XmlIndexAddSession get() {
+		return new Session();
+	}
+
+	/**
+	 * Records a delete, using the element count of the last session for the path when known.
+	 * The loader falls back to delete by query otherwise.
+	 */
+	@Override
+	public synchronized void deletePath(CmsRepository repository, CmsChangesetItem c) {
+		String pathfull = repository.getPath() + c.getPath().toString();
+		ObjectNode delete = mapper.createObjectNode();
+		XmlIndexElementCountStore.Entry recorded = elementCounts.remove(pathfull);
+		if (recorded != null) {
+			delete.put("idBase", recorded.getIdBase());
+			delete.put("count", recorded.getCount());
+		} else {
+			delete.put("pathfull", pathfull);
+		}
+		ObjectNode line = mapper.createObjectNode();
+		line.set(DELETE_KEY, delete);
+		try {
+			write(line, true);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write delete: " + pathfull, e);
+		}
+	}
+
+	@Override
+	public void commit(boolean expungeDeletes) {
+		// Nothing to commit, the manifest is written when a segment is completed.
+	}
+
+	/**
+	 * Completes the last segment and marks the manifest complete.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			endSegment();
+			writeManifest(true);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to complete reposxml export: " + dir, e);
+		}
+		closed = true;
+		logger.info("Completed reposxml export with {} segments: {}", segments.size(), dir);
+	}
+
+	private synchronized void writeDoc(SolrInputDocument doc) throws IOException {
+		ObjectNode line = mapper.createObjectNode();
+		for (SolrInputField f : doc) {
+			Collection<Object> values = f.getValues();
+			if (values == null) {
+				continue;
+			}
+			if (values.size() == 1) {
+				putValue(line, f.getName(), values.iterator().next());
+			} else {
+				ArrayNode a = line.putArray(f.getName());
+				for (Object v : values) {
+					a.addPOJO(toJsonValue(v));
+				}
+			}
+		}
+		write(line, false);
+	}
+
+	private void putValue(ObjectNode line, String name, Object v) {
+		line.putPOJO(name, toJsonValue(v));
+	}
+
+	private Object toJsonValue(Object v) {
+		if (v instanceof Date) {
+			// Solr date fields accept ISO-8601.
+			return Instant.ofEpochMilli(((Date) v).getTime()).toString();
+		}
+		return v;
+	}
+
+	private void write(ObjectNode line, boolean delete) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Export has been closed: " + dir);
+		}
+		if (segment == null) {
+			startSegment();
+		}
+		mapper.writeTree(segment, line);
+		segment.writeRaw('\n');
+		if (delete) {
+			segmentDeletes++;
+		} else {
+			segmentDocs++;
+		}
+		// Count excludes what the generator has buffered, exact size is not needed.
+		if (segmentBytes.getCount() >= SEGMENT_SIZE_MAX) {
+			endSegment();
+			writeManifest(false);
+		}
+	}
+
+	private void startSegment() throws IOException {
+		segmentName = String.format("segment-%05d", segments.size() + 1) + SEGMENT_SUFFIX;
+		OutputStream file = new BufferedOutputStream(new FileOutputStream(new File(dir, segmentName)));
+		segmentBytes = new CountingOutputStream(new GZIPOutputStream(file, 64 * 1024));
+		segment = mapper.getFactory().createGenerator(segmentBytes, JsonEncoding.UTF8);
+		segment.setRootValueSeparator(null);
+		segmentDocs = 0;
+		segmentDeletes = 0;
+	}
+
+	private void endSegment() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		segment.close(); // Also completes the gzip stream.
+		ObjectNode s = mapper.createObjectNode();
+		s.put("name", segmentName);
+		s.put("docs", segmentDocs);
+		s.put("deletes", segmentDeletes);
+		s.put("bytes", segmentBytes.getCount());
+		segments.add(s);
+		logger.info("Completed reposxml export segment {} with {} docs", segmentName, segmentDocs);
+		segment = null;
+	}
+
+	private void writeManifest(boolean complete) throws IOException {
+		ObjectNode manifest = mapper.createObjectNode();
+		manifest.put("version", VERSION);
+		manifest.put("format", "ndjson.gz");
+		manifest.put("complete", complete);
+		ArrayNode a = manifest.putArray("segments");
+		for (ObjectNode s : segments) {
+			a.add(s);
+		}
+		// Replace atomically, the loader must never see a partial manifest.
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		mapper.writerWithDefaultPrettyPrinter().writeValue(tmp, manifest);
+		File target = new File(dir, MANIFEST);
+		if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+			throw new IOException("Failed to write manifest: " + target);
+		}
+	}
+
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+
+	class Session implements XmlIndexAddSession {
+
+		private int contentSize = 0;
+		private int size = 0;
+		private String pathfull = null;
+		private String idBase = null;
+
+		@Override
+		public void end() {
+			if (size > 0 && pathfull != null) {
+				elementCounts.put(pathfull, idBase, size);
+			}
+		}
+
+		@Override
+		public boolean add(IndexingDoc e) {
+			if (!(e instanceof IndexingDocIncrementalSolrj)) {
+				throw new IllegalArgumentException("Unsupported IndexingDoc type " + e.getClass());
+			}
+			SolrInputDocument doc = ((IndexingDocIncrementalSolrj) e).getSolrDoc();
+			try {
+				writeDoc(doc);
+			} catch (IOException ex) {
+				throw new RuntimeException("Failed to write element " + e.getFieldValue("id"), ex);
+			}
+			if (idBase == null) {
+				String id = (String) doc.getFieldValue("id");
+				idBase = id.substring(0, id.length() - ELEMENT_ID_LENGTH); // Keep the '|'.
+				pathfull = (String) doc.getFieldValue("pathfull");
+			}
+			size++;
+			contentSize += e.getContentSize();
+			return true;
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends IndexingDoc> c) {
+			boolean changed = false;
+			for (IndexingDoc d : c) {
+				changed = add(d) || changed;
+			}
+			return changed;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public int sizeContentTotal() {
+			return contentSize;
+		}
+
+		/**
+		 * Docs are written when added, the loader replaces them if the path is indexed again.
+		 */
+		@Override
+		public void clear() {
+			size = 0;
+			contentSize = 0;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public boolean containsAll(Collection<?> c) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		@Override
+		public Iterator<IndexingDoc> iterator() {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public Object[] toArray() {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+
+		@Override
+		public <T> T[] toArray(T[] a) {
+			throw new UnsupportedOperationException("Method not implemented for file export");
+		}
+	}
+
+}
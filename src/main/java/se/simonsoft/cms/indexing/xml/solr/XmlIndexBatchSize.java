@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feedback controller for the batch size (total content size) sent to Solr.
+ *
+ * Grows the batch while the add latency per kB decreases, shrinks it when latency spikes,
+ * when Solr returns errors or when free heap is low. Thread safe, reports can come from background senders.
+ */
+public class XmlIndexBatchSize {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexBatchSize.class);
+
+	// Tests indicated that with a 300MB heap, the performance is optimal around 500 kB batch size.
+	private static final long BATCH_SIZE_INITIAL = 500 * 1000;
+	static final long BATCH_SIZE_MIN = 100 * 1000;
+	private static final long BATCH_SIZE_MAX = 5000 * 1000;
+	/**
+	 * Shrink the batch when free heap (of max heap) is below this fraction.
+	 */
+	private static final double HEAP_FREE_MIN = 0.2;
+
+	private static final double GROW = 1.25;
+	private static final double SHRINK = 0.8;
+	private static final double SHRINK_SPIKE = 0.5;
+	// Latency per kB this much above the average is a spike.
+	private static final double SPIKE = 2.0;
+	// Latency per kB within this margin of the average counts as not worse.
+	private static final double MARGIN = 1.05;
+	// Weight of the most recent measurement in the moving average.
+	private static final double WEIGHT = 0.2;
+
+	private final long min;
+	private final long max;
+
+	private volatile long size;
+	private double latencyAverage = -1; // ms per kB, guarded by this.
+
+	public XmlIndexBatchSize() {
+		this(BATCH_SIZE_INITIAL, BATCH_SIZE_MIN, BATCH_SIZE_MAX);
+	}
+
+	public XmlIndexBatchSize(long initial, long min, long max) {
+		if (min < 1 || min > max || initial < min || initial > max) {
+			throw new IllegalArgumentException("Invalid batch size bounds: " + initial + " (" + min + "-" + max + ")");
+		}
+		this.min = min;
+		this.max = max;
+		this.size = initial;
+	}
+
+	/**
+	 * @return the current batch size, total content size
+	 */
+	public long getBatchSize() {
+		return size;
+	}
+
+	/**
+	 * @return true if free heap is below threshold, pending docs should be sent
+	 */
+	public boolean isHeapLow() {
+		Runtime rt = Runtime.getRuntime();
+		long maxHeap = rt.maxMemory();
+		long free = maxHeap - (rt.totalMemory() - rt.freeMemory());
+		return free < HEAP_FREE_MIN * maxHeap;
+	}
+
+	/**
+	 * @param contentSize of the sent batch
+	 * @param millis duration of the Solr add
+	 */
+	public synchronized void reportSuccess(long contentSize, long millis) {
+
+		if (isHeapLow()) {
+			resize(SHRINK_SPIKE, "low heap");
+			return;
+		}
+
+		double latency = (double) millis / Math.max(1, contentSize / 1000);
+		if (latencyAverage < 0) {
+			latencyAverage = latency;
+			return;
+		}
+
+		if (latency > latencyAverage * SPIKE) {
+			resize(SHRINK_SPIKE, "latency spike");
+		} else if (latency <= latencyAverage * MARGIN) {
+			// Only grow when batches reach the current size, small files say nothing about larger batches.
+			if (contentSize >= size) {
+				resize(GROW, "latency");
+			}
+		} else {
+			resize(SHRINK, "latency");
+		}
+		latencyAverage = (1 - WEIGHT) * latencyAverage + WEIGHT * latency;
+	}
+
+	public synchronized void reportFailure() {
+		resize(SHRINK_SPIKE, "Solr error");
+	}
+
+	private void resize(double factor, String reason) {
+		long next = Math.max(min, Math.min(max, (long) (size * factor)));
+		if (next != size) {
+			logger.info("Batch size {} -> {} ({})", size, next, reason);
+			size = next;
+		}
+	}
+
+}
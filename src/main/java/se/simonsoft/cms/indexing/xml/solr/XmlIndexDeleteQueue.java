@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.repos.indexing.solrj.SolrDelete;
+
+/**
+ * Collects delete-by-id during a changeset, shared by all writers for a Solr core.
+ *
+ * Must be flushed before any add is sent (a retried revision re-adds the same ids)
+ * and before commit in {@link se.simonsoft.cms.indexing.xml.MarkerXmlCommit}.
+ */
+public class XmlIndexDeleteQueue {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexDeleteQueue.class);
+
+	/**
+	 * Max ids per delete request, also flushing when reached.
+	 */
+	private static final int REQUEST_SIZE_MAX = 10000;
+
+	private static final Map<SolrClient, XmlIndexDeleteQueue> queues = new WeakHashMap<SolrClient, XmlIndexDeleteQueue>();
+
+	private final int requestSizeMax;
+
+	// Guarded by this.
+	private List<String> pending = new ArrayList<String>();
+
+
+	public XmlIndexDeleteQueue() {
+		this(REQUEST_SIZE_MAX);
+	}
+
+	XmlIndexDeleteQueue(int requestSizeMax) {
+		this.requestSizeMax = requestSizeMax;
+	}
+
+	/**
+	 * @param core
+	 * @return the queue shared by all writers of the core
+	 */
+	public static XmlIndexDeleteQueue forCore(SolrClient core) {
+		synchronized (queues) {
+			XmlIndexDeleteQueue queue = queues.get(core);
+			if (queue == null) {
+				queue = new XmlIndexDeleteQueue();
+				queues.put(core, queue);
+			}
+			return queue;
+		}
+	}
+
+	/**
+	 * Sends pending deletes, no-op if nothing has been queued for the core.
+	 * @param core
+	 */
+	public static void flush(SolrClient core) {
+		XmlIndexDeleteQueue queue;
+		synchronized (queues) {
+			queue = queues.get(core);
+		}
+		if (queue != null) {
+			queue.flushTo(core);
+		}
+	}
+
+	/**
+	 * @param ids in the order they should be deleted
+	 * @return true if the queue has reached the max request size and should be flushed
+	 */
+	public synchronized boolean add(Collection<String> ids) {
+		pending.addAll(ids);
+		return pending.size() >= requestSizeMax;
+	}
+
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Sends while holding the lock, a concurrent writer must not send adds before the deletes have completed.
+	 * 
+	 * Ids that were not deleted are kept if a request fails, sent by the next flush.
+	 * @param core
+	 */
+	public synchronized void flushTo(SolrClient core) {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		int sent = 0;
+		try {
+			while (sent < pending.size()) {
+				int end = Math.min(pending.size(), sent + requestSizeMax);
+				new SolrDelete(core, new ArrayList<String>(pending.subList(sent, end))).run();
+				sent = end;
+			}
+		} finally {
+			if (sent < pending.size()) {
+				logger.warn("Delete failed, keeping {} of {} queued ids", pending.size() - sent, pending.size());
+			}
+			pending = new ArrayList<String>(pending.subList(sent, pending.size()));
+		}
+		logger.info("Deleted {} queued ids in {} ms", sent, System.currentTimeMillis() - start);
+	}
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps id base and element count of the last indexed revision per pathfull,
+ * making it possible to delete the previous revision without querying reposxml.
+ *
+ * Bounded (least recently used is evicted), a miss means that the delete must query.
+ * Assumes that reposxml is only written by this indexing process.
+ */
+public class XmlIndexElementCountStore {
+
+	private static final int MAX_ENTRIES = 50000;
+
+	private final Map<String, Entry> entries;
+
+	public XmlIndexElementCountStore() {
+		this(MAX_ENTRIES);
+	}
+
+	@SuppressWarnings("serial")
+	public XmlIndexElementCountStore(final int maxEntries) {
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param pathfull
+	 * @param idBase with separator '|'
+	 * @param count number of elements, starting at 1
+	 */
+	public synchronized void put(String pathfull, String idBase, long count) {
+		entries.put(pathfull, new Entry(idBase, count));
+	}
+
+	/**
+	 * Removes the entry, the delete must not be repeated with the same ids.
+	 * @param pathfull
+	 * @return null if unknown
+	 */
+	public synchronized Entry remove(String pathfull) {
+		return entries.remove(pathfull);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+
+	public static class Entry {
+
+		private final String idBase;
+		private final long count;
+
+		Entry(String idBase, long count) {
+			this.idBase = idBase;
+			this.count = count;
+		}
+
+		public String getIdBase() {
+			return idBase;
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+}
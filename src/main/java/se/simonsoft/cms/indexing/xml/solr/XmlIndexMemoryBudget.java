@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.util.Collection;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the heap held by pending {@link SolrInputDocument}s across all sessions and queued background batches.
+ *
+ * Byte accounting is approximate, based on field names and values.
+ */
+public class XmlIndexMemoryBudget {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexMemoryBudget.class);
+
+	/**
+	 * Fraction of max heap that pending documents may use, shared by all writers in the JVM.
+	 */
+	private static final double HEAP_FRACTION = 0.25;
+	/**
+	 * Blocking longer than this proceeds with a warning, the accounting is approximate and must not stall indexing.
+	 */
+	private static final long ACQUIRE_TIMEOUT_SECONDS = 120;
+
+	// Rough object overhead (header, references, length) in a 64-bit JVM.
+	private static final int OVERHEAD_OBJECT = 16;
+	private static final int OVERHEAD_STRING = 40;
+	private static final int OVERHEAD_FIELD = 64;
+
+	private static XmlIndexMemoryBudget shared = null;
+
+	private final long total;
+	private long available; // Guarded by this.
+
+	public XmlIndexMemoryBudget(long total) {
+		if (total < 1) {
+			throw new IllegalArgumentException("Invalid memory budget: " + total);
+		}
+		this.total = total;
+		this.available = total;
+	}
+
+	/**
+	 * @return the budget shared by all writers in the JVM
+	 */
+	public static synchronized XmlIndexMemoryBudget getShared() {
+		if (shared == null) {
+			long budget = (long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION);
+			logger.info("Memory budget for pending reposxml documents: {} bytes", budget);
+			shared = new XmlIndexMemoryBudget(budget);
+		}
+		return shared;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public synchronized long getAvailable() {
+		return available;
+	}
+
+	/**
+	 * @param bytes
+	 * @return true if acquired, false if the budget is exhausted
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		long b = Math.min(bytes, total);
+		if (b > available) {
+			return false;
+		}
+		available -= b;
+		return true;
+	}
+
+	/**
+	 * Blocks until the bytes are available.
+	 * @param bytes
+	 * @return the number of bytes acquired, to be released
+	 */
+	public synchronized long acquire(long bytes) {
+		// A single document larger than the budget must be able to proceed.
+		long b = Math.min(bytes, total);
+		long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_SECONDS * 1000;
+		while (b > available) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				logger.warn("Memory budget for pending reposxml documents exhausted for {} s, proceeding: {} requested, {} available", ACQUIRE_TIMEOUT_SECONDS, b, available);
+				break;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for reposxml memory budget", e);
+			}
+		}
+		available -= b;
+		return b;
+	}
+
+	public synchronized void release(long bytes) {
+		available = Math.min(total, available + bytes);
+		notifyAll();
+	}
+
+	/**
+	 * @param doc
+	 * @return approximate heap size in bytes
+	 */
+	public static long estimate(SolrInputDocument doc) {
+		return estimate(doc, null);
+	}
+
+	/**
+	 * @param doc
+	 * @param shared fields of this doc (same instance) are not counted, e.g. the item fields of an element doc
+	 * @return approximate heap size in bytes, excluding the shared fields
+	 */
+	public static long estimate(SolrInputDocument doc, SolrInputDocument shared) {
+		long size = OVERHEAD_OBJECT;
+		for (SolrInputField f : doc) {
+			if (shared != null && shared.getField(f.getName()) == f) {
+				size += OVERHEAD_OBJECT; // Only the reference.
+				continue;
+			}
+			size += OVERHEAD_FIELD + estimateValue(f.getName());
+			size += estimateValue(f.getValue());
+		}
+		return size;
+	}
+
+	private static long estimateValue(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof String) {
+			return OVERHEAD_STRING + 2L * ((String) value).length();
+		}
+		if (value instanceof Collection) {
+			long size = OVERHEAD_OBJECT;
+			for (Object v : (Collection<?>) value) {
+				size += OVERHEAD_OBJECT + estimateValue(v);
+			}
+			return size;
+		}
+		if (value instanceof Object[]) {
+			long size = OVERHEAD_OBJECT;
+			for (Object v : (Object[]) value) {
+				size += OVERHEAD_OBJECT + estimateValue(v);
+			}
+			return size;
+		}
+		// Boxed numbers, dates etc.
+		return OVERHEAD_OBJECT + 8;
+	}
+
+}
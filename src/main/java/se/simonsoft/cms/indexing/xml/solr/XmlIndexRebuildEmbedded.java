@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.simonsoft.cms.indexing.xml.file.XmlIndexFileLoader;
+
+/**
+ * Full rebuild of reposxml into a local index directory, without HTTP.
+ *
+ * Runs an embedded core with the schema and solrconfig bundled in this jar, with a large
+ * RAM buffer and without update log. Either load an export ({@link #load(File)}) or bind
+ * {@link #getClient()} as the reposxml core during a rebuild run. Lucene writes one segment
+ * per concurrent adding thread, see {@link XmlIndexFileLoader#THREADS}.
+ *
+ * When completed the index in {@link #getDataDir()} replaces the data directory of the
+ * stopped live core. Requires solr-core, an optional dependency.
+ */
+public class XmlIndexRebuildEmbedded {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexRebuildEmbedded.class);
+
+	public static final String CORE = "reposxml";
+	private static final String CLASSPATH = "se/simonsoft/cms/indexing/xml/solr/" + CORE + "/conf/";
+	private static final String[] CONF = { "solrconfig.xml", "schema.xml", "stopwords.txt", "synonyms.txt" };
+
+	private static final int RAM_BUFFER_MB = 1024;
+
+	private final int ramBufferMb;
+	private final int mergeSegmentsMax;
+	private final File dataDir;
+	private final CoreContainer container;
+	private final EmbeddedSolrServer server;
+
+	/**
+	 * @param solrhome empty folder, the index is created in its data subfolder
+	 */
+	public XmlIndexRebuildEmbedded(File solrhome) {
+		this(solrhome, RAM_BUFFER_MB, 0);
+	}
+
+	/**
+	 * @param solrhome empty folder, the index is created in its data subfolder
+	 * @param ramBufferMb indexing buffer of the embedded core
+	 * @param mergeSegmentsMax max segments after rebuild, 0 to skip the merge
+	 */
+	public XmlIndexRebuildEmbedded(File solrhome, int ramBufferMb, int mergeSegmentsMax) {
+		this.ramBufferMb = ramBufferMb;
+		this.mergeSegmentsMax = mergeSegmentsMax;
+		File core = new File(solrhome, CORE);
+		File conf = new File(core, "conf");
+		this.dataDir = new File(core, "data");
+		if (dataDir.exists()) {
+			throw new IllegalArgumentException("Rebuild requires an empty solr home: " + solrhome);
+		}
+		if (!conf.mkdirs()) {
+			throw new IllegalArgumentException("Failed to create core folder: " + conf);
+		}
+		try {
+			for (String c : CONF) {
+				extractClasspathFile(CLASSPATH + c, new File(conf, c));
+			}
+			writeCoreProperties(new File(core, "core.properties"));
+			Files.write(new File(solrhome, "solr.xml").toPath(), "<solr/>\n".getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to set up embedded core in: " + solrhome, e);
+		}
+		this.container = CoreContainer.createAndLoad(solrhome.toPath());
+		this.server = new EmbeddedSolrServer(container, CORE);
+		logger.info("Started embedded reposxml core for rebuild: {}", dataDir);
+	}
+
+	private void writeCoreProperties(File file) throws IOException {
+		// Core properties are available as substitution variables in solrconfig.xml.
+		Properties p = new Properties();
+		p.setProperty("name", CORE);
+		p.setProperty("solr.reposxml.data.dir", dataDir.getAbsolutePath());
+		p.setProperty("solr.reposxml.ramBufferSizeMB", Integer.toString(ramBufferMb));
+		p.setProperty("solr.reposxml.updateLog", "false");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			p.store(w, "Embedded reposxml rebuild");
+		}
+	}
+
+	private void extractClasspathFile(String uri, File destination) throws IOException {
+		try (InputStream r = this.getClass().getClassLoader().getResourceAsStream(uri)) {
+			if (r == null) {
+				throw new IllegalArgumentException("Failed to locate classpath resource " + uri);
+			}
+			Files.copy(r, destination.toPath());
+		}
+	}
+
+	/**
+	 * @return client for the embedded core, e.g. for {@link XmlIndexWriterSolrj}
+	 */
+	public SolrClient getClient() {
+		return server;
+	}
+
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	/**
+	 * @param export written by {@link se.simonsoft.cms.indexing.xml.file.XmlIndexWriterFile}
+	 * @return number of docs added
+	 */
+	public long load(File export) {
+		return new XmlIndexFileLoader(server).load(export);
+	}
+
+	/**
+	 * Commits, optionally merges and closes the core.
+	 * @return the data directory to swap in
+	 */
+	public File complete() {
+		long start = System.currentTimeMillis();
+		try {
+			server.commit(true, true);
+			if (mergeSegmentsMax > 0) {
+				server.optimize(true, true, mergeSegmentsMax);
+			}
+		} catch (SolrServerException | IOException e) {
+			throw new RuntimeException("Failed to complete reposxml rebuild: " + dataDir, e);
+		} finally {
+			container.shutdown();
+		}
+		logger.info("Completed reposxml rebuild in {} ms: {}", System.currentTimeMillis() - start, dataDir);
+		return dataDir;
+	}
+
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+import se.repos.indexing.solrj.SolrAdd;
+
+/**
+ * Optional write-ahead journal for batches sent to reposxml.
+ *
+ * Each batch is written (javabin) before it is sent and removed when Solr has acknowledged it.
+ * A batch that fails is kept and replayed with exponential backoff, extraction continues during
+ * short Solr restarts. While the journal has failed batches new batches are only spilled, replayed in order.
+ * Batches being sent (in flight) are not replayed and do not cause spilling.
+ *
+ * Order is not kept across concurrent senders, a batch that fails may be replayed after a later batch
+ * was acknowledged. Element ids are unique per revision and deletes await the replay (see {@link #awaitDrained(SolrClient)}),
+ * so the add order of batches does not affect the index.
+ *
+ * An entry that can not be read is renamed (quarantined) and fails the next changeset once, replay continues.
+ *
+ * Covers Solr outages within the lifetime of the process, batches left by an earlier process
+ * are discarded because the revision will be indexed again. The directory must not be shared between processes.
+ */
+public class XmlIndexSendJournal {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexSendJournal.class);
+
+	/**
+	 * Max time a changeset (or delete) waits for the journal to drain.
+	 */
+	private static final long DRAIN_TIMEOUT_SECONDS = 300;
+
+	private static final long BACKOFF_INITIAL_MS = 1000;
+	private static final long BACKOFF_MAX_MS = 60000;
+	private static final String SUFFIX = ".javabin";
+	private static final String SUFFIX_QUARANTINE = ".corrupt";
+
+	private static final Map<SolrClient, XmlIndexSendJournal> journals = new WeakHashMap<SolrClient, XmlIndexSendJournal>();
+	private static boolean cleaned = false;
+
+	private final File dir;
+	private final int pendingMax;
+	private final ScheduledExecutorService replayer;
+
+	// Guarded by this.
+	private long sequence = 0;
+	private long backoff = BACKOFF_INITIAL_MS;
+	private boolean replayScheduled = false;
+	/**
+	 * Entries kept for replay, a failed send or spilled after a failure, oldest first.
+	 */
+	private final TreeSet<File> failed = new TreeSet<File>();
+	/**
+	 * Unreadable entries since the last {@link #awaitDrained(SolrClient)}.
+	 */
+	private final List<File> quarantined = new ArrayList<File>();
+
+	/**
+	 * Held while replaying, Solr is not called while holding the lock on this.
+	 */
+	private final Object replaying = new Object();
+
+
+	/**
+	 * @param dir
+	 * @param pendingMax max number of pending batches on disk, then sending fails as without journal
+	 */
+	XmlIndexSendJournal(File dir, int pendingMax) {
+		this.dir = dir;
+		this.pendingMax = pendingMax;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalStateException("Failed to create reposxml journal directory: " + dir);
+		}
+		this.replayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reposxml-journal-replay");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Using reposxml send journal: {}", dir);
+	}
+
+	/**
+	 * @param core
+	 * @param root journal directory, used only when the journal is created
+	 * @param pendingMax used only when the journal is created
+	 * @return the journal of the core
+	 */
+	public static XmlIndexSendJournal forCore(SolrClient core, File root, int pendingMax) {
+		synchronized (journals) {
+			if (!cleaned) {
+				discardEarlierProcess(root);
+				cleaned = true;
+			}
+			XmlIndexSendJournal journal = journals.get(core);
+			if (journal == null) {
+				journal = new XmlIndexSendJournal(new File(root, UUID.randomUUID().toString()), pendingMax);
+				journals.put(core, journal);
+			}
+			return journal;
+		}
+	}
+
+	/**
+	 * Changeset-level barrier, no-op without journal.
+	 * @param core
+	 */
+	public static void awaitDrained(SolrClient core) {
+		XmlIndexSendJournal journal;
+		synchronized (journals) {
+			journal = journals.get(core);
+		}
+		if (journal != null) {
+			journal.awaitDrained(core);
+		}
+	}
+
+	private static void discardEarlierProcess(File root) {
+		File[] earlier = root.listFiles();
+		if (earlier == null) {
+			return;
+		}
+		for (File d : earlier) {
+			File[] entries = d.listFiles();
+			if (entries != null) {
+				if (entries.length > 0) {
+					logger.warn("Discarding {} reposxml journal batches from an earlier process: {}", entries.length, d);
+				}
+				for (File f : entries) {
+					if (f.getName().endsWith(SUFFIX_QUARANTINE)) {
+						logger.warn("Keeping quarantined reposxml journal batch: {}", f);
+						continue;
+					}
+					f.delete();
+				}
+			}
+			d.delete(); // Kept if there are quarantined entries.
+		}
+	}
+
+	/**
+	 * @return true if there are failed batches awaiting replay, not counting batches in flight
+	 */
+	public synchronized boolean hasPending() {
+		return !failed.isEmpty();
+	}
+
+	/**
+	 * Sends the batch with the journal as safety net.
+	 * Does not throw when Solr is unavailable, the batch is then replayed later.
+	 * @param core
+	 * @param pending
+	 * @return true if sent now, false if spilled for replay
+	 */
+	public boolean send(SolrClient core, Collection<SolrInputDocument> pending) {
+
+		long id;
+		boolean spillOnly;
+		synchronized (this) {
+			spillOnly = !failed.isEmpty();
+			if (spillOnly && failed.size() >= pendingMax) {
+				throw new RuntimeException("Journal for reposxml is full (" + pendingMax + " batches), Solr has not recovered.");
+			}
+			id = ++sequence;
+		}
+		// Marshalling and disk I/O without the lock, senders in the pool write concurrently.
+		File entry = write(id, pending);
+		if (spillOnly) {
+			synchronized (this) {
+				failed.add(entry);
+			}
+			logger.info("Journal has failed batches, spilled: {}", entry.getName());
+			scheduleReplay(core);
+			return false;
+		}
+
+		try {
+			new SolrAdd(core, pending).run();
+		} catch (RuntimeException e) {
+			logger.warn("Solr add failed, batch kept in journal for replay: {} - {}", entry.getName(), e.getMessage());
+			synchronized (this) {
+				failed.add(entry);
+			}
+			scheduleReplay(core);
+			return false;
+		}
+		entry.delete(); // Acknowledged.
+		return true;
+	}
+
+	private File write(long id, Collection<SolrInputDocument> pending) {
+		File tmp = new File(dir, String.format("%016d", id) + ".tmp");
+		File entry = new File(dir, tmp.getName().replace(".tmp", SUFFIX));
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp)); JavaBinCodec codec = new JavaBinCodec()) {
+			codec.marshal(new ArrayList<SolrInputDocument>(pending), os);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write reposxml journal: " + tmp, e);
+		}
+		// Complete entries only, a partially written tmp file is never replayed.
+		if (!tmp.renameTo(entry)) {
+			throw new RuntimeException("Failed to write reposxml journal: " + entry);
+		}
+		return entry;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<SolrInputDocument> read(File entry) throws IOException {
+		try (InputStream is = new BufferedInputStream(new FileInputStream(entry)); JavaBinCodec codec = new JavaBinCodec()) {
+			List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+			for (Object o : (List<Object>) codec.unmarshal(is)) {
+				docs.add((SolrInputDocument) o);
+			}
+			return docs;
+		}
+	}
+
+	/**
+	 * Replays failed batches in order, stops at the first failure.
+	 * Unreadable batches are quarantined, see {@link #awaitDrained(SolrClient)}.
+	 * @param core
+	 * @return true if there are no failed batches
+	 */
+	public boolean drain(SolrClient core) {
+		synchronized (replaying) {
+			while (true) {
+				File entry;
+				synchronized (this) {
+					if (failed.isEmpty()) {
+						backoff = BACKOFF_INITIAL_MS;
+						return true;
+					}
+					entry = failed.first();
+				}
+				List<SolrInputDocument> docs;
+				try {
+					docs = read(entry);
+				} catch (IOException | RuntimeException e) {
+					quarantine(entry, e);
+					continue;
+				}
+				try {
+					new SolrAdd(core, docs).run();
+				} catch (RuntimeException e) {
+					logger.info("Replay of reposxml journal failed, retrying in {} ms: {}", getBackoff(), e.getMessage());
+					return false;
+				}
+				// Removed after the acknowledge, a concurrent send keeps spilling until the last one is replayed.
+				synchronized (this) {
+					failed.remove(entry);
+				}
+				entry.delete();
+				logger.info("Replayed reposxml journal batch: {}", entry.getName());
+			}
+		}
+	}
+
+	private void quarantine(File entry, Exception e) {
+		File corrupt = new File(dir, entry.getName() + SUFFIX_QUARANTINE);
+		if (!entry.renameTo(corrupt)) {
+			corrupt = entry;
+		}
+		String msg = MessageFormatter.format("Unreadable reposxml journal batch, quarantined {}: {}", corrupt, e.getMessage()).getMessage();
+		logger.error(msg, e);
+		synchronized (this) {
+			failed.remove(entry);
+			quarantined.add(corrupt);
+		}
+	}
+
+	private synchronized long getBackoff() {
+		return backoff;
+	}
+
+	private synchronized void scheduleReplay(final SolrClient core) {
+		if (replayScheduled) {
+			return;
+		}
+		replayScheduled = true;
+		final long delay = backoff;
+		backoff = Math.min(BACKOFF_MAX_MS, backoff * 2);
+		replayer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (XmlIndexSendJournal.this) {
+					replayScheduled = false;
+				}
+				if (!drain(core)) {
+					scheduleReplay(core);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Blocks until failed batches are replayed, throws after {@value #DRAIN_TIMEOUT_SECONDS} seconds.
+	 * Throws once if batches were quarantined since the last call, their documents are missing.
+	 * @param core
+	 */
+	public void awaitDrained(SolrClient core) {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_SECONDS * 1000;
+		long wait = BACKOFF_INITIAL_MS;
+		while (!drain(core)) {
+			if (System.currentTimeMillis() + wait > deadline) {
+				throw new RuntimeException("Solr did not recover within " + DRAIN_TIMEOUT_SECONDS + " s, reposxml journal has pending batches.");
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while awaiting reposxml journal replay", e);
+			}
+			wait = Math.min(BACKOFF_MAX_MS, wait * 2);
+		}
+		List<File> lost;
+		synchronized (this) {
+			if (quarantined.isEmpty()) {
+				return;
+			}
+			lost = new ArrayList<File>(quarantined);
+			quarantined.clear();
+		}
+		throw new RuntimeException("Reposxml journal had unreadable batches, documents are missing: " + lost);
+	}
+
+}
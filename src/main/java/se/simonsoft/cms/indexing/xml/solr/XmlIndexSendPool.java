@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * Long-lived pool of threads sending batches to Solr in the background.
+ *
+ * One pool is shared by all writers for a Solr core, making it possible to await completion
+ * from {@link se.simonsoft.cms.indexing.xml.MarkerXmlCommit} regardless of how many writer instances DI creates.
+ *
+ * The number of batches waiting or being sent is bounded, {@link #submit(String, Runnable)} blocks
+ * when XML processing outpaces Solr (keeps RAM consumption bounded).
+ */
+public class XmlIndexSendPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexSendPool.class);
+
+	/**
+	 * Number of batches that can wait for a sender thread before submit blocks.
+	 */
+	public static final int QUEUE_DEFAULT = 4;
+
+	// #1094 Issuing SolR commit without awaiting full completion will make the resulting searcher incomplete.
+	// The backlog is bounded by threads + queue batches so the timeout does not need to scale with changeset size.
+	private static final long COMPLETION_TIMEOUT_SECONDS = 60;
+
+	private static final Map<SolrClient, XmlIndexSendPool> pools = new WeakHashMap<SolrClient, XmlIndexSendPool>();
+
+	private final ThreadPoolExecutor executor;
+	private final Semaphore slots;
+
+	// Guarded by this.
+	private final Map<String, Integer> inflight = new HashMap<String, Integer>();
+	private int inflightTotal = 0;
+	private final List<String> failures = new LinkedList<String>();
+
+
+	public XmlIndexSendPool(int threads, int queue) {
+		if (threads < 1 || queue < 0) {
+			throw new IllegalArgumentException("Invalid send pool configuration, threads " + threads + " queue " + queue);
+		}
+		this.slots = new Semaphore(threads + queue);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new SenderThreadFactory());
+		// Idle pools (e.g. a core that is no longer used) should not keep threads.
+		this.executor.allowCoreThreadTimeOut(true);
+		logger.info("Created Solr background send pool with {} threads, queue {}", threads, queue);
+	}
+
+	/**
+	 * @param core
+	 * @param threads used only when the pool is created
+	 * @param queue used only when the pool is created
+	 * @return the pool shared by all writers of the core
+	 */
+	public static XmlIndexSendPool forCore(SolrClient core, int threads, int queue) {
+		synchronized (pools) {
+			XmlIndexSendPool pool = pools.get(core);
+			if (pool == null) {
+				pool = new XmlIndexSendPool(threads, queue);
+				pools.put(core, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Changeset-level barrier, no-op if nothing has been sent in the background to the core.
+	 * @param core
+	 */
+	public static void awaitCompletion(SolrClient core) {
+		XmlIndexSendPool pool;
+		synchronized (pools) {
+			pool = pools.get(core);
+		}
+		if (pool != null) {
+			pool.awaitCompletion();
+		}
+	}
+
+	/**
+	 * Schedules a send, blocking while the pool is saturated.
+	 * @param key identifies the document (pathfull) so that deletes can await its sends
+	 * @param send
+	 */
+	public void submit(final String key, final Runnable send) {
+
+		long start = System.currentTimeMillis();
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for Solr Background send slot", e);
+		}
+		long waited = System.currentTimeMillis() - start;
+		if (waited > 1000) {
+			// Logging in info level because this shows that XML processing outpaces Solr.
+			logger.info("Awaited Solr Background send slot: {} ms", waited);
+		}
+
+		synchronized (this) {
+			Integer count = inflight.get(key);
+			inflight.put(key, count == null ? 1 : count + 1);
+			inflightTotal++;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send.run();
+					} catch (RuntimeException e) {
+						String msg = MessageFormatter.format("Solr Background send failed for {}: {}", key, e.getMessage()).getMessage();
+						logger.error(msg, e);
+						synchronized (XmlIndexSendPool.this) {
+							failures.add(msg);
+						}
+					} finally {
+						done(key);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			done(key);
+			throw e;
+		}
+	}
+
+	private synchronized void done(String key) {
+		Integer count = inflight.get(key);
+		if (count == null || count <= 1) {
+			inflight.remove(key);
+		} else {
+			inflight.put(key, count - 1);
+		}
+		inflightTotal--;
+		slots.release();
+		notifyAll();
+	}
+
+	/**
+	 * Awaits completion of the sends for one document, typically before deleting it.
+	 * @param key
+	 */
+	public synchronized void awaitCompletion(String key) {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(COMPLETION_TIMEOUT_SECONDS);
+		while (inflight.containsKey(key)) {
+			doWait(deadline);
+		}
+	}
+
+	/**
+	 * Awaits completion of all sends, throws if any of them failed since the previous call.
+	 */
+	public synchronized void awaitCompletion() {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(COMPLETION_TIMEOUT_SECONDS);
+		while (inflightTotal > 0) {
+			doWait(deadline);
+		}
+
+		if (!failures.isEmpty()) {
+			// #1346 Treat background failure as a failure to ensure another attempt is made.
+			String msg = MessageFormatter.format("Solr Background send failed for {} batches, XML index is incomplete: {}", failures.size(), failures.get(0)).getMessage();
+			failures.clear();
+			throw new RuntimeException(msg);
+		}
+	}
+
+	private void doWait(long deadline) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			logger.error("Completion of Solr Background send timed out, XML index will likely be incomplete until next commit.");
+			throw new RuntimeException("Completion of Solr Background send timed out.");
+		}
+		try {
+			wait(remaining);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			String msg = MessageFormatter.format("Failed to await completion of Solr Background send: {}", e.getMessage()).getMessage();
+			logger.warn(msg, e);
+			throw new RuntimeException(msg);
+		}
+	}
+
+
+	private static class SenderThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger poolCount = new AtomicInteger();
+		private final int pool = poolCount.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "reposxml-send-" + pool + "-" + threadCount.incrementAndGet());
+			// Must not prevent JVM shutdown.
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -15,6 +15,7 @@
  */
 package se.simonsoft.cms.indexing.xml.solr;
 
+import java.io.File;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.AbstractMap;
@@ -47,6 +48,7 @@ import se.repos.indexing.solrj.SolrDeleteByQuery;
 import se.repos.indexing.solrj.SolrQueryOp;
 import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
 import se.simonsoft.cms.indexing.xml.XmlIndexAddSession;
+import se.simonsoft.cms.indexing.xml.XmlIndexDocOverlay;
 import se.simonsoft.cms.indexing.xml.XmlIndexWriter;
 import se.simonsoft.cms.indexing.xml.fields.XmlIndexIdAppendDepthFirstPosition;
 import se.simonsoft.cms.item.CmsRepository;
@@ -61,9 +63,15 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 	 * As element size varies a lot due to source and text indexing we can
 	 * try to keep reasonably small batches by also checking total text+source length,
 	 * triggering batchReady if above a certain limit instead of waiting for the number of elements.
+	 * The limit adapts to measured Solr latency and heap headroom.
 	 */
-	// Tests indicate that with a 300MB heap, the performance is optimal around 500 kB batch size.
-	private static final long BATCH_TEXT_TOTAL_MAX = 500 * 1000;	
+	private final XmlIndexBatchSize batchSize = new XmlIndexBatchSize();
+	
+	/**
+	 * Limits pending documents across sessions and queued background batches (the
+	 * BATCH_SIZE_MAX quick fix above was about OutOfMemoryError).
+	 */
+	private final XmlIndexMemoryBudget memoryBudget = XmlIndexMemoryBudget.getShared();
 	
 	// Limit triggering logging of large element. Should likely be in range 4000-10000.
 	private static final long SIZE_INFO_ABOVE = 8000;
@@ -75,10 +83,48 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 	private static final int ELEMENT_ID_LENGTH = XmlIndexIdAppendDepthFirstPosition.getElementId(1).length();
 	private static final int DELETE_PAGE_SIZE = 1000;
 	public static boolean deleteByQueryAllowed = true; // Used by testing to ensure the efficient delete is used.
+	/**
+	 * Collect delete-by-id across the changeset, sent before the next add batch or in {@link se.simonsoft.cms.indexing.xml.MarkerXmlCommit}.
+	 */
+	private boolean deleteCoalescing = false;
+	
+	/**
+	 * Id base and element count recorded when the session ends, avoids the delete query for the next revision.
+	 */
+	private final XmlIndexElementCountStore elementCounts = new XmlIndexElementCountStore();
+	
+	private final XmlIndexDeleteQueue deleteQueue;
+	
+	/**
+	 * Write-ahead journal, null unless a journal directory is configured.
+	 */
+	private XmlIndexSendJournal journal = null;
 	
 	@Inject
 	public XmlIndexWriterSolrj(@Named("reposxml") SolrClient core) {
 		this.solrServer = core;
+		this.deleteQueue = XmlIndexDeleteQueue.forCore(core);
+	}
+	
+	/**
+	 * @param deleteCoalescing
+	 * @param journalDir write-ahead journal directory, empty to disable, must not be shared between processes
+	 * @param journalPendingMax max number of batches in the journal, then sending fails as without journal
+	 */
+	@Inject
+	public void setConfigIndexing(
+			@Named("se.simonsoft.cms.indexing.xml.deleteCoalescing") Boolean deleteCoalescing,
+			@Named("se.simonsoft.cms.indexing.xml.journalDir") String journalDir,
+			@Named("se.simonsoft.cms.indexing.xml.journalPendingMax") Integer journalPendingMax
+			) {
+		
+		this.deleteCoalescing = Boolean.TRUE.equals(deleteCoalescing);
+		if (this.deleteCoalescing) {
+			logger.info("Configured to coalesce reposxml deletes per changeset");
+		}
+		if (journalDir != null && !journalDir.isEmpty()) {
+			this.journal = XmlIndexSendJournal.forCore(solrServer, new File(journalDir), journalPendingMax);
+		}
 	}
 	
 	@Override
@@ -88,17 +134,57 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 	
 	protected void batchSend(Session session) {
 		
+		long memory = session.sizeMemory();
 		Collection<SolrInputDocument> pending = session.rotatePending();
 		if (pending.size() == 0) {
 			logger.warn("Send to solr attempted with empty document list");
 			return;
 		}
 		logger.info("Sending {} elements size {} to Solr starting with id {}", pending.size(), session.sizeContentTotal(), pending.iterator().next().getFieldValue("id"));
-		doBatchSend(pending);
+		try {
+			flushDeletes();
+			doBatchSend(pending, session.sizeContentTotal());
+		} finally {
+			memoryBudget.release(memory);
+		}
+	}
+	
+	protected void doBatchSend(Collection<SolrInputDocument> pending, long contentSize) {
+		long start = System.currentTimeMillis();
+		if (journal != null) {
+			// Kept in the journal for replay if Solr is unavailable, extraction continues.
+			if (!journal.send(solrServer, pending)) {
+				batchSize.reportFailure();
+				return;
+			}
+			batchSize.reportSuccess(contentSize, System.currentTimeMillis() - start);
+			return;
+		}
+		try {
+			new SolrAdd(solrServer, pending).run();
+		} catch (RuntimeException e) {
+			batchSize.reportFailure();
+			throw e;
+		}
+		batchSize.reportSuccess(contentSize, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * @return the current batch size limit (total content size), adapted to Solr latency and heap
+	 */
+	public long getBatchSize() {
+		return batchSize.getBatchSize();
+	}
+	
+	protected XmlIndexMemoryBudget getMemoryBudget() {
+		return memoryBudget;
 	}
 	
-	protected void doBatchSend(Collection<SolrInputDocument> pending) {
-		new SolrAdd(solrServer, pending).run();
+	/**
+	 * Coalesced deletes must complete before adds, the same ids are added when a revision is retried.
+	 */
+	protected void flushDeletes() {
+		deleteQueue.flushTo(solrServer);
 	}
 	
 	protected void sessionEnd(Session session) {
@@ -107,6 +193,18 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 	
 		
 	public void deletePath(CmsRepository repository, CmsChangesetItem c) {
+		if (journal != null) {
+			// A replayed batch must not re-add the revision being deleted.
+			journal.awaitDrained(solrServer);
+		}
+		// Id base and number of elements recorded when the previous revision was indexed.
+		XmlIndexElementCountStore.Entry recorded = elementCounts.remove(getPathFull(repository, c));
+		if (recorded != null) {
+			logger.info("Deleting previous revision ({} docs, recorded): {}", recorded.getCount(), recorded.getIdBase());
+			deleteIds(recorded.getIdBase(), recorded.getCount());
+			return;
+		}
+		
 		// Query for the id as well as number of elements.
 		SolrQuery query = getDeleteQuery(repository, c);
 		QueryResponse existing = new SolrQueryOp(solrServer, query).run();
@@ -142,22 +240,28 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 	 */
 	private void deleteIds(String idBase, long count) {
 		// Paged delete for large documents, reverse order.
-		// Not bothering with partial last page.
 		Instant start = Instant.now(); 
-		long pages = (count / DELETE_PAGE_SIZE) + 1; // Adding one page for the division remainder.
+		long pages = (count + DELETE_PAGE_SIZE - 1) / DELETE_PAGE_SIZE;
 		for (long i = (pages-1); i >= 0 ; i--) { // Reverse to ensure that depth=1 is deleted last.
-			deleteIdPage(idBase, i);
+			deleteIdPage(idBase, i, count);
 		}
 		// TODO: Change to debug level
 		Instant end = Instant.now(); 
 		logger.info("Deleted previous revision ({} pages) in {} ms: {}", pages, Duration.between(start, end).toMillis(), idBase);
 	}
 	
-	private void deleteIdPage(String idBase, long page) {
+	private void deleteIdPage(String idBase, long page, long count) {
 		LinkedList<String> ids = new LinkedList<>();
-		for (long i = DELETE_PAGE_SIZE * page; i <= DELETE_PAGE_SIZE * (page+1) ; i++) { // overlap one
+		long last = Math.min(count, DELETE_PAGE_SIZE * (page+1));
+		for (long i = DELETE_PAGE_SIZE * page + 1; i <= last; i++) { // The first element is 1.
 			ids.add(idBase + XmlIndexIdAppendDepthFirstPosition.getElementId(i));
 		}
+		if (deleteCoalescing) {
+			if (deleteQueue.add(ids)) {
+				flushDeletes();
+			}
+			return;
+		}
 		new SolrDelete(solrServer, ids).run();
 	}
 	
@@ -200,7 +304,7 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 		new SolrDeleteByQuery(solrServer, query).run();	
 	}
 	
-	private static String getPathFull(CmsRepository repository, CmsChangesetItem c) {
+	protected static String getPathFull(CmsRepository repository, CmsChangesetItem c) {
 		return repository.getPath() + c.getPath().toString();
 	}
 	
@@ -225,9 +329,25 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 		
 		private int contentSize = 0;
 		
+		private long memory = 0;
+		
+		/**
+		 * Item fields shared by the element docs, see {@link XmlIndexDocOverlay}, counted once per session.
+		 */
+		private SolrInputDocument base = null;
+		private long baseMemory = 0;
+		
+		private String pathfull = null;
+		private String idBase = null;
+		private long elementCount = 0;
+		
 		@Override
 		public void end() {
+			if (elementCount > 0 && pathfull != null) {
+				elementCounts.put(pathfull, idBase, elementCount);
+			}
 			sessionEnd(this);
+			releaseBase();
 		}
 		
 		private SolrInputDocument getSolrDoc(IndexingDoc doc) {
@@ -237,10 +357,15 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 			throw new IllegalArgumentException("Unsupported IndexingDoc type " + doc.getClass());
 		}
 		
+		/**
+		 * The caller takes over the memory budget of the returned docs, see {@link #sizeMemory()}.
+		 * @return pending docs
+		 */
 		public Collection<SolrInputDocument> rotatePending() {
 			
 			Collection<SolrInputDocument> returnPending = this.pending;
 			pending = new LinkedList<SolrInputDocument>();
+			memory = 0;
 			return returnPending;
 		}
 		
@@ -255,6 +380,13 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 			return contentSize;
 		}
 		
+		/**
+		 * @return approximate heap size of pending docs, acquired from the memory budget
+		 */
+		public long sizeMemory() {
+			return memory;
+		}
+		
 		private Entry<String, Integer> getLargestField(IndexingDoc e) {
 			@SuppressWarnings("unused")
 			final Set<String> largeCandidates = new HashSet<String>(Arrays.asList("id", "prop_abx.Dependencies", "source", "source_reuse"));
@@ -279,6 +411,17 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 		
 		@Override
 		public boolean add(IndexingDoc e) {
+			SolrInputDocument doc = getSolrDoc(e);
+			SolrInputDocument shared = e instanceof XmlIndexDocOverlay ? ((XmlIndexDocOverlay) e).getBase().getSolrDoc() : null;
+			if (shared != base) {
+				releaseBase();
+				if (shared != null) {
+					baseMemory = acquire(XmlIndexMemoryBudget.estimate(shared));
+					base = shared;
+				}
+			}
+			long bytes = acquire(XmlIndexMemoryBudget.estimate(doc, shared));
+			
 			if (size() == 0) {
 				contentSize = 0;
 			}
@@ -288,23 +431,48 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 				logger.info("Large element '{}' {}, fields {}, total size {}, largest field {}:{}", 
 						new Object[] {e.getFieldValue("name"), e.getFieldValue("id"), e.size(), s, l.getKey(), l.getValue()});
 			}
-			if (!pending.add(getSolrDoc(e))) {
+			if (!pending.add(doc)) {
+				memoryBudget.release(bytes);
 				throw new IllegalArgumentException("Doc add failed for " + e);
 			}
+			if (idBase == null) {
+				String id = (String) doc.getFieldValue("id");
+				idBase = id.substring(0, id.length() - ELEMENT_ID_LENGTH); // Keep the '|'.
+				pathfull = (String) doc.getFieldValue("pathfull");
+			}
+			elementCount++;
+			memory += bytes;
 			contentSize += s;
-//TODO			// we have a rough measurement of total field size here and can trigger batch send to reduce risk of hitting memory limitations in webapp
-//			if (batchTextTotal > BATCH_TEXT_TOTAL_MAX) {
-//				logger.info("Sending batch because total source+text size {} indicates large update", batchTextTotal);
-//				batchReady = true; // send batch
-//				batchTextTotal = 0;
-//			}
-			if (contentSize >= BATCH_TEXT_TOTAL_MAX) {
-				logger.info("Reached max batch add size {} after {} elements, forcing send to solr", BATCH_TEXT_TOTAL_MAX, pending.size());
+			long max = batchSize.getBatchSize();
+			if (contentSize >= max) {
+				logger.info("Reached max batch add size {} after {} elements, forcing send to solr", max, pending.size());
+				batchSend(this);
+			} else if (contentSize >= XmlIndexBatchSize.BATCH_SIZE_MIN && batchSize.isHeapLow()) {
+				logger.info("Low free heap, forcing send to solr after {} elements size {}", pending.size(), contentSize);
 				batchSend(this);
 			}
 			return true;
 		}
 
+		private long acquire(long estimate) {
+			long bytes = Math.min(estimate, memoryBudget.getTotal());
+			if (!memoryBudget.tryAcquire(bytes)) {
+				// Send own pending docs before blocking, the budget is then only held by batches being sent.
+				if (size() > 0) {
+					logger.info("Memory budget exhausted after {} elements size {}, forcing send to solr", pending.size(), contentSize);
+					batchSend(this);
+				}
+				bytes = memoryBudget.acquire(bytes);
+			}
+			return bytes;
+		}
+		
+		private void releaseBase() {
+			memoryBudget.release(baseMemory);
+			baseMemory = 0;
+			base = null;
+		}
+
 		@Override
 		public boolean addAll(Collection<? extends IndexingDoc> c) {
 			boolean changed = false;
@@ -314,9 +482,18 @@ public class XmlIndexWriterSolrj implements Provider<XmlIndexAddSession>, XmlInd
 			return changed;
 		}
 
+		/**
+		 * Discards pending docs, e.g. when extraction fails, releasing their memory budget.
+		 */
 		@Override
 		public void clear() {
-			throw new UnsupportedOperationException("Method not implemented for Solr add batch");
+			long m = memory;
+			Collection<SolrInputDocument> discarded = rotatePending();
+			if (!discarded.isEmpty()) {
+				logger.info("Discarding {} pending elements starting with id {}", discarded.size(), discarded.iterator().next().getFieldValue("id"));
+			}
+			memoryBudget.release(m);
+			releaseBase();
 		}
 
 		@Override
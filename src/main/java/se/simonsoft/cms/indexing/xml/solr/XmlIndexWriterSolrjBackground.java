@@ -17,10 +17,6 @@ package se.simonsoft.cms.indexing.xml.solr;
 
 import java.util.Collection;
 import java.util.Date;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -29,20 +25,38 @@ import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.helpers.MessageFormatter;
 
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
 
+
+/**
+ * Sends batches using the {@link XmlIndexSendPool} of the core, extraction of the next file
+ * overlaps with sending the previous one.
+ * 
+ * Completion is awaited per changeset in {@link se.simonsoft.cms.indexing.xml.MarkerXmlCommit}.
+ */
 public class XmlIndexWriterSolrjBackground extends XmlIndexWriterSolrj {
 
 	private final Logger logger = LoggerFactory.getLogger(XmlIndexWriterSolrjBackground.class);
 	
-	private ExecutorService executor = null;
+	private final XmlIndexSendPool pool;
 
 	private long count = 0;
 	
+	/**
+	 * @param core
+	 * @param sendThreads threads sending to Solr in parallel, used when the pool of the core is created
+	 */
 	@Inject
-	public XmlIndexWriterSolrjBackground(@Named("reposxml") SolrClient core) {
+	public XmlIndexWriterSolrjBackground(@Named("reposxml") SolrClient core,
+			@Named("se.simonsoft.cms.indexing.xml.sendThreads") Integer sendThreads) {
+		this(core, XmlIndexSendPool.forCore(core, sendThreads, XmlIndexSendPool.QUEUE_DEFAULT));
+	}
+	
+	public XmlIndexWriterSolrjBackground(SolrClient core, XmlIndexSendPool pool) {
 		super(core);
+		this.pool = pool;
 	}
 
 	@Override
@@ -57,72 +71,58 @@ public class XmlIndexWriterSolrjBackground extends XmlIndexWriterSolrj {
 	
 	private void submitSend(Session session) {
 		
-		if (executor == null) {
-			executor = Executors.newSingleThreadExecutor();
-		}
-		
-		logger.debug("Scheduling xml batch {}, {} elements, {} total", ++count, session.size(), session.sizeContentTotal());
+		final long id = ++count;
+		logger.debug("Scheduling xml batch {}, {} elements, {} total", id, session.size(), session.sizeContentTotal());
 		
-		Collection<SolrInputDocument> pending = session.rotatePending();
-		executor.submit(new IndexSend(pending, count)); // Throws RejectedExecutionException if executor is shutting down.
+		final long contentSize = session.sizeContentTotal();
+		final long memory = session.sizeMemory();
+		final Collection<SolrInputDocument> pending = session.rotatePending();
+		String pathfull = (String) pending.iterator().next().getFieldValue("pathfull");
+		try {
+			flushDeletes();
+			pool.submit(pathfull, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						doBatchSend(pending, contentSize);
+					} finally {
+						getMemoryBudget().release(memory);
+					}
+					logger.debug("Scheduled batch {} completed", id);
+				}
+			}); // Blocks if the pool is saturated.
+		} catch (RuntimeException e) {
+			getMemoryBudget().release(memory);
+			throw e;
+		}
 	}
 	
 	@Override
 	protected void sessionEnd(Session session) {
 		
-		// Send the last batch.
+		// Send the last batch, completion is awaited per changeset.
 		if (session.size() != 0) {
 			submitSend(session);
 		}
+	}
+	
+	@Override
+	public void deletePath(CmsRepository repository, CmsChangesetItem c) {
+		// Sends of the same document must not complete after the delete, e.g. after failed extraction.
+		pool.awaitCompletion(getPathFull(repository, c));
+		super.deletePath(repository, c);
+	}
+	
+	/**
+	 * Awaits completion of all background sends to the core, regardless of writer instance.
+	 */
+	public void waitForCompletion() {
 		
 		Date start = new Date();
-		waitForCompletion();
+		pool.awaitCompletion();
 		Date completed = new Date();
 		// Logging in info level because this can show if XML processing outpaces Solr, which would build RAM consumption.
 		logger.info("Awaited completion of Solr Background executor: {} ms", completed.getTime() - start.getTime());
 	}
 	
-	// Probably needed for unit tests
-	// TODO: This wait could be moved to MarkerXmlCommit, per-commit instead of per-document.
-	// Things might change when supporting indexing in Lambda.
-	public void waitForCompletion() {
-		// Is there anything in the ExecutorService API for this? Yes, but we need to shutdown.
-		ExecutorService executor = this.executor;
-		this.executor = null; // Ensure this executor is never reused regardless of shutdown result.
-		executor.shutdown();
-		try {
-			// #1094 Issuing SolR commit without awaiting full completion will make the resulting searcher incomplete.
-			boolean terminated = executor.awaitTermination(60, TimeUnit.SECONDS);
-			if (!terminated) {
-				logger.error("Completion of Solr Background executor timed out, XML index will likely be incomplete until next commit.");
-				// #1346 Probably need to treat background executor timeout as a failure to ensure another attempt is made.
-				throw new RuntimeException("Completion of Solr Background executor timed out.");
-			}
-		} catch (InterruptedException e) {
-			String msg = MessageFormatter.format("Failed to await shutdown of Solr Background executor: {}", e.getMessage()).getMessage();
-			logger.warn(msg, e);
-			throw new RuntimeException(msg);
-		}
-	}
-	
-	
-	private class IndexSend implements Callable<Object> {
-		
-		private Collection<SolrInputDocument> pending;
-		private long id;
-		
-		IndexSend(Collection<SolrInputDocument> pending, long id) {
-			this.pending = pending;
-			this.id = id;
-		}
-		
-		@Override
-		public Object call() throws Exception {
-			doBatchSend(pending);
-			logger.debug("Scheduled batch {} completed", id);
-			return null;
-		}
-		
-	}
-
 }
@@ -47,6 +47,45 @@
 	<!-- <xsl:variable name="whitespace" select="'&#x20;&#xD;&#xA;&#x9;'"/>-->
 	<xsl:variable name="whitespace" select="' '"/>
 
+	<xsl:mode use-accumulators="#all"/>
+
+	<!-- Words and element counts computed bottom-up in a single pass, previously descendant-or-self per element (quadratic). -->
+	<!-- The value has a stack of open elements ('open', innermost first) and the element that just ended ('done'). -->
+	<!-- Text below @keyref is not counted, translate excludes are inherited by descendants. Only the first 500 tokens are kept. -->
+	<!-- Saxon keeps the value at every node, a full token sequence is passed on as is (shared) instead of copied. -->
+	<xsl:accumulator name="cmsreposxml:text-stats" as="map(*)" initial-value="map{'open': (), 'done': ()}">
+		<xsl:accumulator-rule match="element()" phase="start" select="
+			let $p := head($value?open) return
+			map{'open': (map{
+				'keyref': boolean($p?keyref) or exists(@keyref),
+				'exclude': boolean($p?exclude) or exists(@translate[. = 'no']) or exists(@markfortrans[. = 'no']) or exists(@cms:tsuppress[not(. = 'no')]),
+				'tokens': (), 'text': 0, 'translate': 0, 'child': 0, 'elements': 1}, $value?open),
+				'done': ()}"/>
+		<xsl:accumulator-rule match="text()" select="
+			let $f := head($value?open), $t := tokenize(normalize-space(.), $whitespace) return
+			if (empty($f) or empty($t)) then $value else
+			map{'open': (map{
+				'keyref': $f?keyref,
+				'exclude': $f?exclude,
+				'tokens': if ($f?keyref or count($f?tokens) ge 500) then $f?tokens else ($f?tokens, $t)[500 >= position()],
+				'text': if ($f?keyref) then $f?text else $f?text + count($t),
+				'translate': if ($f?keyref or $f?exclude) then $f?translate else $f?translate + count($t),
+				'child': $f?child + count($t),
+				'elements': $f?elements}, tail($value?open)),
+				'done': ()}"/>
+		<xsl:accumulator-rule match="element()" phase="end" select="
+			let $f := head($value?open), $p := head(tail($value?open)) return
+			map{'open': (if (empty($p)) then () else map{
+				'keyref': $p?keyref,
+				'exclude': $p?exclude,
+				'tokens': if (count($p?tokens) ge 500 or empty($f?tokens)) then $p?tokens else ($p?tokens, $f?tokens)[500 >= position()],
+				'text': $p?text + $f?text,
+				'translate': $p?translate + $f?translate,
+				'child': $p?child,
+				'elements': $p?elements + $f?elements}, tail(tail($value?open))),
+				'done': $f}"/>
+	</xsl:accumulator>
+
 
 	<xsl:template match="/">
 		
@@ -60,33 +99,35 @@
 		</xsl:copy>
 	</xsl:template>
 
-	<xsl:template match="@*|node()">
+	<xsl:template match="@*|text()|comment()|processing-instruction()">
+		<xsl:copy/>
+	</xsl:template>
+
+	<xsl:template match="element()">
 		<!-- Tokenize the text nodes before concat:ing them to avoid issue with missing space (btw e.g. a title and a p) -->
 		<!-- Inspired by: http://stackoverflow.com/questions/12784190/xslt-tokenize-nodeset -->
-		<xsl:variable name="text" select="for $elemtext in descendant-or-self::text()[not(ancestor::*[@keyref])] return tokenize(normalize-space($elemtext), $whitespace)"/>
-		<!-- Text that should be / has been translated.  -->
-		<xsl:variable name="text_translate" select="for $elemtext in descendant-or-self::text()[not(ancestor::*[@keyref])][not(ancestor::*[@translate='no' or @markfortrans='no'])][not(ancestor::*[@cms:tsuppress[not(. = 'no')]])] return tokenize(normalize-space($elemtext), $whitespace)"/>
-		<!-- Text immediate child nodes. -->
-		<xsl:variable name="text_child" select="for $elemtext in child::text() return tokenize(normalize-space($elemtext), $whitespace)"/>
-		
+		<!-- Tokens (first 500) and counts of descendant-or-self::text() not below @keyref, see accumulator. -->
+		<!-- Text that should be / has been translated: also not below translate='no', markfortrans='no' or cms:tsuppress. -->
+		<!-- Text immediate child nodes: count_words_child. -->
+		<xsl:variable name="stats" as="map(*)" select="accumulator-after('cmsreposxml:text-stats')?done"/>
 		
 		<xsl:copy>
 			<!-- Number of elements -->	
-			<xsl:attribute name="cmsreposxml:count_elements" select="count(descendant-or-self::element())"/>
+			<xsl:attribute name="cmsreposxml:count_elements" select="$stats?elements"/>
 			
 			<!-- Just concat of the tokens/words. -->
 			<!-- Max 500 words or 3000 chars. -->
 			<xsl:variable name="text_string" as="xs:string">
-				<xsl:value-of select="$text[500 >= position()]"/>
+				<xsl:value-of select="$stats?tokens"/>
 			</xsl:variable>
 			<xsl:if test="3000 >= string-length($text_string)">
 				<xsl:attribute name="cmsreposxml:text" select="$text_string"/>
 			</xsl:if>
 			
 			<!-- Word count is simple when each word is a text node. -->
-			<xsl:attribute name="cmsreposxml:count_words_text" select="count($text)"/>
-			<xsl:attribute name="cmsreposxml:count_words_translate" select="count($text_translate)"/>
-			<xsl:attribute name="cmsreposxml:count_words_child" select="count($text_child)"/>
+			<xsl:attribute name="cmsreposxml:count_words_text" select="$stats?text"/>
+			<xsl:attribute name="cmsreposxml:count_words_translate" select="$stats?translate"/>
+			<xsl:attribute name="cmsreposxml:count_words_child" select="$stats?child"/>
 			
 			
 			<xsl:attribute name="cmsreposxml:reusevalue">
@@ -123,6 +164,9 @@
 		<xsl:attribute name="cmsreposxml:source_reuse" select="."/>
 	</xsl:template>
 	
+	<!-- Calculated by reuse-normalize.xsl (cms-xmlsource), serializing each element. -->
+	<!-- Bottom-up checksums would replace that only if reuse-normalize can skip its own hashing, -->
+	<!-- computing them in addition is extra work and changes all checksums (full reindex). -->
 	<xsl:template match="@cms:c_sha1_source_reuse">
 		<xsl:attribute name="cmsreposxml:c_sha1_source_reuse" select="."/>
 	</xsl:template>
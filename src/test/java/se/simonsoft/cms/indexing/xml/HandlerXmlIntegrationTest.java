@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 
 import static org.mockito.Mockito.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -40,7 +41,14 @@ import org.apache.solr.common.SolrInputDocument;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Module;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
 
 import se.repos.indexing.IndexAdmin;
 import se.repos.indexing.solrj.SolrCommit;
@@ -50,6 +58,8 @@ import se.simonsoft.cms.backend.filexml.CmsRepositoryFilexml;
 import se.simonsoft.cms.backend.filexml.FilexmlRepositoryReadonly;
 import se.simonsoft.cms.backend.filexml.FilexmlSourceClasspath;
 import se.simonsoft.cms.backend.filexml.testing.ReposTestBackendFilexml;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexReleaseReuseChecksum;
+import se.simonsoft.cms.indexing.xml.fields.XmlIndexRidChecksumCache;
 import se.simonsoft.cms.indexing.xml.solr.XmlIndexWriterSolrj;
 import se.simonsoft.cms.indexing.xml.testconfig.IndexingConfigXmlBase;
 import se.simonsoft.cms.indexing.xml.testconfig.IndexingConfigXmlDefault;
@@ -60,6 +70,9 @@ public class HandlerXmlIntegrationTest {
 
 	private ReposTestIndexing indexing = null;
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	/**
 	 * Manual dependency injection.
 	 */
@@ -72,6 +85,18 @@ public class HandlerXmlIntegrationTest {
 		indexing = ReposTestIndexing.getInstance(indexOptions);
 	}
 	
+	/**
+	 * Replaces the indexing from {@link #setUpIndexing()}, with config overriding the test defaults.
+	 */
+	private void setUpIndexing(Module config) throws IOException {
+		indexing.tearDown();
+		TestIndexOptions indexOptions = new TestIndexOptions().itemDefaultServices()
+				.addCore("reposxml", "se/simonsoft/cms/indexing/xml/solr/reposxml/**")
+				.addModule(Modules.override(new IndexingConfigXmlBase()).with(config))
+				.addModule(new IndexingConfigXmlDefault());
+		indexing = ReposTestIndexing.getInstance(indexOptions);
+	}
+	
 	@After
 	public void tearDown() throws IOException {
 		indexing.tearDown();
@@ -152,6 +177,73 @@ public class HandlerXmlIntegrationTest {
 		assertEquals("should extract source", "<elem>text</elem>", x1.get(1).getFieldValue("source_reuse"));
 	}
 
+	@Test
+	public void testTinyPretranslateWordCounts() throws Exception {
+		FilexmlSourceClasspath repoSource = new FilexmlSourceClasspath("se/simonsoft/cms/indexing/xml/datasets/tiny-pretranslate");
+		CmsRepositoryFilexml repo = new CmsRepositoryFilexml("http://localtesthost/svn/tiny-pretranslate", repoSource);
+		FilexmlRepositoryReadonly filexml = new FilexmlRepositoryReadonly(repo);
+		
+		indexing.enable(new ReposTestBackendFilexml(filexml));
+		
+		SolrClient reposxml = indexing.getCore("reposxml");
+		
+		// Values as computed with descendant-or-self per element, before the text-stats accumulator.
+		SolrDocumentList x1 = reposxml.query(new SolrQuery("pathname:test1-translate-no-term.xml").addSort("treelocation", ORDER.asc)).getResults();
+		assertEquals("Should index all elements", 7, x1.getNumFound());
+		
+		assertEquals("doc", x1.get(0).getFieldValue("name"));
+		assertEquals("all elements", 7L, x1.get(0).getFieldValue("count_elements"));
+		assertEquals("tokens in document order, excl keyref", "text SEED HAWK", x1.get(0).getFieldValue("text"));
+		assertEquals("word count excl keyref", 3L, x1.get(0).getFieldValue("count_words_text"));
+		assertEquals("word count translate excl translate='no'", 1L, x1.get(0).getFieldValue("count_words_translate"));
+		assertEquals("word count child (immediate text)", 0L, x1.get(0).getFieldValue("count_words_child"));
+		
+		assertEquals("p", x1.get(3).getFieldValue("name"));
+		assertEquals("element pos", "1.1.2", x1.get(3).getFieldValue("treelocation"));
+		assertEquals("elements below", 2L, x1.get(3).getFieldValue("count_elements"));
+		assertEquals("SEED HAWK", x1.get(3).getFieldValue("text"));
+		assertEquals(2L, x1.get(3).getFieldValue("count_words_text"));
+		assertEquals("translate='no' on the child", 0L, x1.get(3).getFieldValue("count_words_translate"));
+		
+		assertEquals("term", x1.get(4).getFieldValue("name"));
+		assertEquals("translate='no' on the element itself", 0L, x1.get(4).getFieldValue("count_words_translate"));
+		assertEquals(2L, x1.get(4).getFieldValue("count_words_child"));
+		
+		assertEquals("ph", x1.get(6).getFieldValue("name"));
+		assertEquals("element pos", "1.1.3.1", x1.get(6).getFieldValue("treelocation"));
+		assertEquals("keyref text not counted", 0L, x1.get(6).getFieldValue("count_words_text"));
+		assertEquals("keyref text not counted", 0L, x1.get(6).getFieldValue("count_words_translate"));
+		assertEquals("immediate text is counted also with keyref", 1L, x1.get(6).getFieldValue("count_words_child"));
+	}
+	
+	@Test
+	public void testTinyPretranslateParallel() throws Exception {
+		setUpIndexing(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.parallelThreads")).toInstance(2);
+			}
+		});
+		FilexmlSourceClasspath repoSource = new FilexmlSourceClasspath("se/simonsoft/cms/indexing/xml/datasets/tiny-pretranslate");
+		CmsRepositoryFilexml repo = new CmsRepositoryFilexml("http://localtesthost/svn/tiny-pretranslate", repoSource);
+		FilexmlRepositoryReadonly filexml = new FilexmlRepositoryReadonly(repo);
+		
+		indexing.enable(new ReposTestBackendFilexml(filexml));
+		
+		// The handler chain must submit several items of the changeset before awaiting the first, otherwise extraction is sequential.
+		XmlIndexParallel parallel = indexing.getContext().getInstance(XmlIndexParallel.class);
+		assertTrue("parallel extraction configured", parallel.isEnabled());
+		assertTrue("items should be extracted concurrently, max pending was " + parallel.getSubmittedMax(), parallel.getSubmittedMax() > 1);
+		
+		SolrClient reposxml = indexing.getCore("reposxml");
+		SolrDocumentList x1 = reposxml.query(new SolrQuery("pathname:test1-translate-no-term.xml").addSort("treelocation", ORDER.asc)).getResults();
+		assertEquals("Should index all elements", 7, x1.getNumFound());
+		assertEquals("word count excl keyref", 3L, x1.get(0).getFieldValue("count_words_text"));
+		
+		SolrClient repositem = indexing.getCore("repositem");
+		assertEquals("flagged like sequential extraction", 1, repositem.query(new SolrQuery("pathname:test1-translate-no-term.xml AND flag:hasxml AND head:true")).getResults().getNumFound());
+	}
+	
 	@Test
 	public void testTinyRidDuplicate() throws Exception {
 		FilexmlSourceClasspath repoSource = new FilexmlSourceClasspath("se/simonsoft/cms/indexing/xml/datasets/tiny-ridduplicate");
@@ -513,6 +605,46 @@ public class HandlerXmlIntegrationTest {
 	}
 
 	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testAttributesReleasetranslationTranslationPrecompute() throws SolrServerException, IOException {
+		final File ridmap = folder.newFolder("ridmap");
+		setUpIndexing(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(Boolean.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.releasePrecompute")).toInstance(Boolean.TRUE);
+				bind(String.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.ridmapDir")).toInstance(ridmap.getPath());
+			}
+		});
+		// Other tests index the same Release, only the precomputed entry should be cached.
+		XmlIndexRidChecksumCache<?> cache = XmlIndexReleaseReuseChecksum.getCache();
+		cache.clear();
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		FilexmlSourceClasspath repoSource = new FilexmlSourceClasspath("se/simonsoft/cms/indexing/xml/datasets/releasetranslation");
+		CmsRepositoryFilexml repo = new CmsRepositoryFilexml("http://localtesthost/svn/testaut1", repoSource);
+		FilexmlRepositoryReadonly filexml = new FilexmlRepositoryReadonly(repo);
+		
+		indexing.enable(new ReposTestBackendFilexml(filexml));
+		SolrClient reposxml = indexing.getCore("reposxml");
+		
+		SolrDocumentList findUsingRid0 = reposxml.query(new SolrQuery("a_cms.rid:2gyvymn15kv0000 AND prop_abx.TranslationLocale:*")).getResults();
+		assertEquals("Should find root element in the Translation", 1, findUsingRid0.getNumFound());
+		SolrDocument elem0 = findUsingRid0.get(0);
+		
+		List<String> cList = (List<String>) elem0.getFieldValue("reuse_c_sha1_release_descendants");
+		assertTrue("should contain Release checksum", cList.contains("c5fed03ed1304cecce75d63aee2ada2b0f2326af"));
+		Collection<Object> shard = elem0.getFieldValues("reuse_rid_c5");
+		assertEquals("get RID by checksum", "c5fed03ed1304cecce75d63aee2ada2b0f2326af 2gyvymn15kv0006", shard.iterator().next());
+		
+		assertEquals("Translation should not run the Release transform", misses, cache.getMisses());
+		assertTrue("Translation should use the precomputed RID-map", cache.getHits() > hits);
+		File[] stored = ridmap.listFiles();
+		assertEquals("precomputed RID-map persisted", 1, stored.length);
+		assertTrue(stored[0].getName().endsWith(".ridmap"));
+	}
+
+	
 	@Test
 	public void testReleaseLabelSort1() throws Exception {
 		FilexmlSourceClasspath repoSource = new FilexmlSourceClasspath("se/simonsoft/cms/indexing/xml/datasets/releaselabels");
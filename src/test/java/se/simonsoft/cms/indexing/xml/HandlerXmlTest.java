@@ -191,7 +191,7 @@ public class HandlerXmlTest {
 		HandlerXml handlerXml = injector.getInstance(HandlerXml.class);
 		handlerXml.setDependenciesIndexing(indexWriter);
 		handlerXml.setFieldExtraction(fe);
-		handlerXml.setConfigIndexing(10 * 1048576, null);
+		handlerXml.setConfigIndexing(10 * 1048576, null, false);
 		
 		CmsChangesetItem p1i = mock(CmsChangesetItem.class);
 		when(p1i.isFile()).thenReturn(true);
@@ -245,7 +245,7 @@ public class HandlerXmlTest {
 		HandlerXml handlerXml = injector.getInstance(HandlerXml.class);
 		handlerXml.setDependenciesIndexing(indexWriter);
 		handlerXml.setFieldExtraction(fe);
-		handlerXml.setConfigIndexing(10 * 1048576, null);
+		handlerXml.setConfigIndexing(10 * 1048576, null, false);
 		
 		CmsChangesetItem p1i = mock(CmsChangesetItem.class);
 		when(p1i.isFile()).thenReturn(true);
@@ -301,7 +301,7 @@ public class HandlerXmlTest {
 		HandlerXml handlerXml = injector.getInstance(HandlerXml.class);
 		handlerXml.setDependenciesIndexing(indexWriter);
 		handlerXml.setFieldExtraction(fe);
-		handlerXml.setConfigIndexing(10 * 1048576, null);
+		handlerXml.setConfigIndexing(10 * 1048576, null, false);
 		
 		CmsChangesetItem p1i = mock(CmsChangesetItem.class);
 		when(p1i.isFile()).thenReturn(true);
@@ -357,7 +357,7 @@ public class HandlerXmlTest {
 		HandlerXml handlerXml = injector.getInstance(HandlerXml.class);
 		handlerXml.setDependenciesIndexing(indexWriter);
 		handlerXml.setFieldExtraction(fe);
-		handlerXml.setConfigIndexing(10 * 1048576, "90tbkfc5eev0000");
+		handlerXml.setConfigIndexing(10 * 1048576, "90tbkfc5eev0000", false);
 		
 		CmsChangesetItem p1i = mock(CmsChangesetItem.class);
 		when(p1i.isFile()).thenReturn(true);
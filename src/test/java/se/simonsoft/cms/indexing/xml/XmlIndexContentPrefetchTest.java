@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+public class XmlIndexContentPrefetchTest {
+
+	private Callable<InputStream> contents(final String s) {
+		return new Callable<InputStream>() {
+			@Override
+			public InputStream call() throws Exception {
+				return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+			}
+		};
+	}
+
+	private String read(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) > -1) {
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testTake() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(2, 1, 1024);
+		prefetch.prefetch("a", contents("<doc/>"));
+		assertEquals("<doc/>", read(prefetch.take("a")));
+		assertNull("taken once", prefetch.take("a"));
+		assertNull("not prefetched", prefetch.take("b"));
+		assertEquals(0, prefetch.getMemory());
+	}
+
+	@Test
+	public void testMemoryMax() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(2, 1, 5);
+		prefetch.prefetch("a", contents("<doc/>"));
+		assertNull("fetched inline when above limit", prefetch.take("a"));
+		assertEquals(0, prefetch.getMemory());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(2, 1, 1024);
+		prefetch.prefetch("a", new Callable<InputStream>() {
+			@Override
+			public InputStream call() throws Exception {
+				throw new IOException("backend");
+			}
+		});
+		assertNull("fetched inline on failure", prefetch.take("a"));
+	}
+
+	@Test
+	public void testLookahead() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(2, 1, 1024);
+		prefetch.prefetch("a", contents("a"));
+		prefetch.prefetch("b", contents("b"));
+		assertEquals("b", read(prefetch.take("b")));
+		prefetch.prefetch("c", contents("c"));
+		assertEquals("c", read(prefetch.take("c")));
+		prefetch.discard("a");
+		assertNull(prefetch.take("a"));
+		assertEquals(0, prefetch.getMemory());
+	}
+
+	@Test
+	public void testWindowFull() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(2, 1, 1024);
+		prefetch.prefetch("a", contents("a"));
+		prefetch.prefetch("b", contents("b"));
+		prefetch.prefetch("c", contents("c"));
+		assertNull("skipped when full", prefetch.take("c"));
+		assertEquals("completed entries are kept", "a", read(prefetch.take("a")));
+		assertEquals("b", read(prefetch.take("b")));
+		assertEquals(0, prefetch.getMemory());
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(1, 1, 1024);
+		prefetch.prefetch("a", contents("a"));
+		prefetch.clear();
+		assertNull(prefetch.take("a"));
+		assertEquals(0, prefetch.getMemory());
+		prefetch.prefetch("b", contents("b"));
+		assertEquals("window available after clear", "b", read(prefetch.take("b")));
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		XmlIndexContentPrefetch prefetch = new XmlIndexContentPrefetch(0);
+		assertFalse(prefetch.isEnabled());
+		prefetch.prefetch("a", contents("a"));
+		assertNull(prefetch.take("a"));
+		prefetch.clear();
+	}
+
+}
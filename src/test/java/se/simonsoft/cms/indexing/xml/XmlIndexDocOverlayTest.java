@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+
+public class XmlIndexDocOverlayTest {
+
+	private IndexingDocIncrementalSolrj getBase() {
+		IndexingDocIncrementalSolrj base = new IndexingDocIncrementalSolrj();
+		base.addField("id", "localtesthost/svn/repo/doc.xml@0000000002");
+		base.addField("pathfull", "/svn/repo/doc.xml");
+		base.addField("size", 1234L);
+		base.addField("flag", "hasxml");
+		return base;
+	}
+
+	@Test
+	public void testOverlay() {
+		IndexingDocIncrementalSolrj base = getBase();
+		XmlIndexDocOverlay doc = new XmlIndexDocOverlay(base);
+		doc.setField("id", "localtesthost/svn/repo/doc.xml@0000000002|00000001");
+		doc.addField("depth", 1);
+		doc.removeField("size");
+		doc.addField("flag", "hasxmlrepositem");
+
+		assertEquals("/svn/repo/doc.xml", doc.getFieldValue("pathfull"));
+		assertFalse(doc.containsKey("size"));
+		assertNull(doc.getFieldValue("size"));
+		assertEquals(Arrays.asList("hasxml", "hasxmlrepositem"), new ArrayList<Object>(doc.getFieldValues("flag")));
+		assertEquals(4, doc.size());
+
+		assertEquals("base is not modified", "localtesthost/svn/repo/doc.xml@0000000002", base.getFieldValue("id"));
+		assertEquals(1234L, base.getFieldValue("size"));
+		assertEquals(1, base.getFieldValues("flag").size());
+
+		SolrInputDocument solr = doc.getSolrDoc();
+		assertEquals(4, solr.size());
+		assertEquals("/svn/repo/doc.xml", solr.getFieldValue("pathfull"));
+		assertEquals("localtesthost/svn/repo/doc.xml@0000000002|00000001", solr.getFieldValue("id"));
+		assertNull(solr.getField("size"));
+	}
+
+	@Test
+	public void testModifyAfterMerge() {
+		IndexingDocIncrementalSolrj base = getBase();
+		XmlIndexDocOverlay doc = new XmlIndexDocOverlay(base);
+		doc.getSolrDoc();
+		doc.addField("flag", "hasxmlrepositem");
+		doc.setField("pathfull", "/svn/repo/other.xml");
+		assertEquals("shared fields are copied before modification", 1, base.getFieldValues("flag").size());
+		assertEquals("/svn/repo/doc.xml", base.getFieldValue("pathfull"));
+		assertEquals(2, doc.getFieldValues("flag").size());
+	}
+
+	@Test
+	public void testDeepCopy() {
+		XmlIndexDocOverlay doc = new XmlIndexDocOverlay(getBase());
+		doc.removeField("size");
+		IndexingDoc copy = doc.deepCopy();
+		assertEquals(3, copy.size());
+		assertEquals("/svn/repo/doc.xml", copy.getFieldValue("pathfull"));
+	}
+
+}
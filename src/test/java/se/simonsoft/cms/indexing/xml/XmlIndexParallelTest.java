@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class XmlIndexParallelTest {
+
+	private static final Runnable NOOP = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	@Test
+	public void testDisabled() {
+		XmlIndexParallel p = new XmlIndexParallel(0);
+		assertFalse(p.isEnabled());
+		assertFalse(p.await("/item"));
+		assertTrue(p.await().isEmpty());
+	}
+
+	@Test
+	public void testAwait() {
+		XmlIndexParallel p = new XmlIndexParallel(4, 3600);
+		final AtomicInteger done = new AtomicInteger();
+		for (int i = 0; i < 50; i++) {
+			p.submit("/item" + i, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					done.incrementAndGet();
+				}
+			}, NOOP);
+		}
+		assertEquals("none awaited yet", 50, p.getSubmittedMax());
+		assertTrue(p.await("/item10"));
+		assertFalse("awaited once", p.await("/item10"));
+		assertFalse("not submitted", p.await("/other"));
+		assertTrue(p.await().isEmpty());
+		assertEquals(50, done.get());
+	}
+
+	@Test
+	public void testFailure() {
+		XmlIndexParallel p = new XmlIndexParallel(2, 3600);
+		p.submit("/ok.xml", NOOP, NOOP);
+		p.submit("/failed.xml", new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("invalid");
+			}
+		}, NOOP);
+		p.submit("/failed2.xml", new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("invalid");
+			}
+		}, NOOP);
+		assertTrue(p.await("/ok.xml"));
+		try {
+			p.await("/failed.xml");
+			fail("Should report the failed item");
+		} catch (RuntimeException e) {
+			assertEquals("invalid", e.getMessage());
+		}
+		// Not awaited per item, only logged.
+		assertEquals(Arrays.asList("/failed2.xml"), p.await());
+		assertTrue(p.await().isEmpty());
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		XmlIndexParallel p = new XmlIndexParallel(1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch discarded = new CountDownLatch(1);
+		final AtomicInteger started = new AtomicInteger();
+		p.submit("/slow.xml", new Runnable() {
+			@Override
+			public void run() {
+				started.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				discarded.countDown();
+			}
+		});
+		p.submit("/queued.xml", new Runnable() {
+			@Override
+			public void run() {
+				started.incrementAndGet();
+			}
+		}, NOOP);
+		try {
+			p.await("/slow.xml");
+			fail("Should time out");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("/slow.xml"));
+		}
+		try {
+			p.await("/queued.xml");
+			fail("Should time out behind the slow item");
+		} catch (IllegalStateException e) {
+		}
+		release.countDown();
+		assertTrue("running task discarded when done", discarded.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals("queued task never started", 1, started.get());
+	}
+
+	@Test
+	public void testTimeoutHoldsPermit() throws Exception {
+		final XmlIndexParallel p = new XmlIndexParallel(1, 1); // 2 permits
+		final CountDownLatch release = new CountDownLatch(1);
+		p.submit("/slow.xml", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, NOOP);
+		try {
+			p.await("/slow.xml");
+			fail("Should time out");
+		} catch (IllegalStateException e) {
+		}
+		p.submit("/second.xml", NOOP, NOOP);
+		final CountDownLatch submitted = new CountDownLatch(1);
+		Thread third = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				p.submit("/third.xml", NOOP, NOOP);
+				submitted.countDown();
+			}
+		});
+		third.start();
+		assertFalse("the timed out task still holds its permit", submitted.await(300, TimeUnit.MILLISECONDS));
+
+		final CountDownLatch awaited = new CountDownLatch(1);
+		Thread marker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				p.await();
+				awaited.countDown();
+			}
+		});
+		marker.start();
+		assertFalse("awaits the timed out task before commit", awaited.await(300, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(submitted.await(10, TimeUnit.SECONDS));
+		assertTrue(awaited.await(10, TimeUnit.SECONDS));
+		third.join();
+		marker.join();
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.xmlsource.handler.XmlNotWellFormedException;
+
+public class XmlIndexStreamingTest {
+
+	private static final String ID = "localtesthost/svn/repo/doc.xml@0000000002";
+
+	private List<IndexingDoc> index(String xml) {
+		return index(xml, new XmlIndexStreaming());
+	}
+
+	private List<IndexingDoc> index(String xml, XmlIndexStreaming streaming) {
+		IndexingDocIncrementalSolrj base = new IndexingDocIncrementalSolrj();
+		base.addField("id", ID);
+		base.addField("pathfull", "/svn/repo/doc.xml");
+		final List<IndexingDoc> docs = new ArrayList<IndexingDoc>();
+		XmlIndexAddSession session = mock(XmlIndexAddSession.class);
+		when(session.add(any(IndexingDoc.class))).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				return docs.add((IndexingDoc) invocation.getArguments()[0]);
+			}
+		});
+		long count = streaming.index(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), base, session);
+		assertEquals(count, docs.size());
+		verify(session).end();
+		return docs;
+	}
+
+	@Test
+	public void testElements() {
+		List<IndexingDoc> docs = index("<doc xmlns:x=\"http://example.net/x\" x:a=\"1\"><title>The  title</title><sec id=\"s1\"><p>one</p><p>two</p></sec></doc>");
+		assertEquals(5, docs.size());
+		// Docs are completed in post-order.
+		IndexingDoc root = docs.get(4);
+		assertEquals(ID + "|00000001", root.getFieldValue("id"));
+		assertEquals("doc", root.getFieldValue("name"));
+		assertEquals("http://example.net/x", root.getFieldValue("ns_x"));
+		assertEquals("The title one two", root.getFieldValue("text"));
+		assertEquals(ID + "|00000001", root.getFieldValue("id_r"));
+		assertEquals("/svn/repo/doc.xml", root.getFieldValue("pathfull"));
+
+		IndexingDoc p2 = docs.get(2);
+		assertEquals(ID + "|00000005", p2.getFieldValue("id"));
+		assertEquals(3, p2.getFieldValue("depth"));
+		assertEquals(2, p2.getFieldValue("position"));
+		assertEquals(ID + "|00000003", p2.getFieldValue("id_p"));
+		assertEquals("sec", p2.getFieldValue("pname"));
+		assertEquals(Arrays.asList("doc", "sec"), new ArrayList<Object>(p2.getFieldValues("aname")));
+		assertEquals("two", p2.getFieldValue("text"));
+
+		assertEquals("s1", docs.get(3).getFieldValue("a_id"));
+	}
+
+	@Test
+	public void testLimits() {
+		List<IndexingDoc> docs = index("<doc><sec><p>one</p><p>two</p></sec><sec><p>more than ten</p></sec></doc>", new XmlIndexStreaming(2, 10));
+		assertEquals("deeper elements not indexed", 3, docs.size());
+		assertEquals("text of deeper elements", "one two", docs.get(0).getFieldValue("text"));
+		assertNull("text above limit omitted", docs.get(1).getFieldValue("text"));
+		assertEquals(ID + "|00000003", docs.get(1).getFieldValue("id"));
+		assertNull(docs.get(2).getFieldValue("text"));
+	}
+
+	@Test
+	public void testTextTokens() {
+		List<IndexingDoc> docs = index("<doc><title>A</title><p>B<b>old</b> text <ph keyref=\"k1\">key <i>word</i></ph><!-- c -->end</p></doc>");
+		IndexingDoc root = docs.get(docs.size() - 1);
+		assertEquals("element boundaries separate words", "A B old text end", root.getFieldValue("text"));
+		assertNull("no text below keyref", docs.get(2).getFieldValue("text"));
+		assertEquals("ph", docs.get(2).getFieldValue("name"));
+	}
+
+	@Test
+	public void testContextFields() {
+		List<IndexingDoc> docs = index("<doc xmlns:x=\"http://example.net/x\" lang=\"en\" status=\"draft\"><sec id=\"s1\" lang=\"sv\"><p/></sec><sec id=\"s2\"><p/></sec></doc>");
+		IndexingDoc p1 = docs.get(0);
+		assertEquals("1.1.1", p1.getFieldValue("treelocation"));
+		assertEquals("en", p1.getFieldValue("ra_lang"));
+		assertEquals("sv", p1.getFieldValue("ia_lang"));
+		assertEquals("sv", p1.getFieldValue("aa_lang"));
+		assertEquals("draft", p1.getFieldValue("aa_status"));
+		assertEquals("http://example.net/x", p1.getFieldValue("ins_x"));
+		assertNull(p1.getFieldValue("id_s"));
+
+		IndexingDoc sec2 = docs.get(3);
+		assertEquals("1.2", sec2.getFieldValue("treelocation"));
+		assertEquals("en", sec2.getFieldValue("ia_lang"));
+		assertEquals(ID + "|00000002", sec2.getFieldValue("id_s"));
+		assertEquals("sec", sec2.getFieldValue("sname"));
+		assertEquals("s1", sec2.getFieldValue("sa_id"));
+		assertNull("only the preceding sibling", docs.get(2).getFieldValue("id_s"));
+		assertEquals("1", docs.get(4).getFieldValue("treelocation"));
+	}
+
+	@Test(expected = XmlNotWellFormedException.class)
+	public void testNotWellFormed() {
+		index("<doc><p></doc>");
+	}
+
+}
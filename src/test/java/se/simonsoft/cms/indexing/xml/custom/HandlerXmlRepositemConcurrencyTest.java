@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.custom;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.saxon.s9api.Processor;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.item.IndexingItemProgress;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
+import se.simonsoft.cms.xmlsource.handler.s9api.XmlSourceDocumentS9api;
+import se.simonsoft.cms.xmlsource.handler.s9api.XmlSourceReaderS9api;
+
+/**
+ * Concurrent use of one handler instance.
+ * The throughput benchmark runs with -Dse.simonsoft.cms.indexing.benchmark=true
+ */
+public class HandlerXmlRepositemConcurrencyTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(HandlerXmlRepositemConcurrencyTest.class);
+
+	private static final String DOC = "se/simonsoft/cms/indexing/xml/datasets/releasetranslation/R001.xml";
+
+	private HandlerXmlRepositem handler;
+	private XmlSourceDocumentS9api xmlDoc;
+
+	@Before
+	public void setUp() throws IOException {
+		Processor p = new Processor(false);
+		handler = new HandlerXmlRepositem(p);
+		try (InputStream xml = this.getClass().getClassLoader().getResourceAsStream(DOC)) {
+			xmlDoc = new XmlSourceReaderS9api(p).read(xml);
+		}
+	}
+
+	private IndexingDoc handle() {
+		return handle(null);
+	}
+
+	private IndexingDoc handle(String ditamap) {
+		CmsChangesetItem item = mock(CmsChangesetItem.class);
+		when(item.getPath()).thenReturn(new CmsItemPath("/R001.xml"));
+		IndexingDoc fields = new IndexingDocIncrementalSolrj();
+		fields.addField("pathext", "xml");
+		fields.addField("patharea", "release");
+		if (ditamap != null) {
+			fields.addField(HandlerXmlRepositem.PROPNAME_DITAMAP_FIELD_NAME, ditamap);
+		}
+		IndexingItemProgress progress = mock(IndexingItemProgress.class);
+		when(progress.getItem()).thenReturn(item);
+		when(progress.getFields()).thenReturn(fields);
+		handler.handle(progress, xmlDoc);
+		return fields;
+	}
+
+	private long run(int threads, final int items) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<IndexingDoc>> results = new ArrayList<Future<IndexingDoc>>();
+			long start = System.nanoTime();
+			for (int i = 0; i < items; i++) {
+				results.add(executor.submit(new Callable<IndexingDoc>() {
+					@Override
+					public IndexingDoc call() {
+						return handle();
+					}
+				}));
+			}
+			for (Future<IndexingDoc> r : results) {
+				assertEquals("My First Novel", r.get().getFieldValue("embd_xml_title"));
+			}
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentSameResult() throws Exception {
+		IndexingDoc expected = handle();
+		assertEquals("My First Novel", expected.getFieldValue("embd_xml_title"));
+		run(4, 40);
+		assertEquals("parameters do not leak between calls", expected.getFieldValue("embd_xml_title"), handle().getFieldValue("embd_xml_title"));
+	}
+
+	@Test
+	public void testDitamapCached() throws Exception {
+		String ditamap = "<map><title>Shared map</title></map>";
+		assertEquals("title from ditamap", "Shared map", handle(ditamap).getFieldValue("embd_xml_title"));
+		assertEquals(1, handler.getDitamapCacheSize());
+		assertEquals("Shared map", handle(ditamap).getFieldValue("embd_xml_title"));
+		assertEquals("same entry", 1, handler.getDitamapCacheSize());
+		assertEquals("Other map", handle("<map><title>Other map</title></map>").getFieldValue("embd_xml_title"));
+		assertEquals(2, handler.getDitamapCacheSize());
+		assertEquals("My First Novel", handle().getFieldValue("embd_xml_title"));
+	}
+
+	@Test
+	public void testThroughputScaling() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("se.simonsoft.cms.indexing.benchmark"));
+		int items = 2000;
+		run(1, items); // Warm up.
+		int cores = Runtime.getRuntime().availableProcessors();
+		long single = 0;
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			long nanos = run(threads, items);
+			if (threads == 1) {
+				single = nanos;
+			}
+			logger.info("Repositem XSL with {} threads: {} items/s, speedup {}", threads,
+					String.format("%.0f", items * 1e9 / nanos), String.format("%.2f", (double) single / nanos));
+		}
+	}
+
+}
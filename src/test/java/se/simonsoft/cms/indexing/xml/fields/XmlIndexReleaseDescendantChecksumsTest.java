@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+
+/**
+ * The reuse_rid_ shards compared to the previous implementation (sorted map per shard).
+ * The benchmark runs with -Dse.simonsoft.cms.indexing.benchmark=true
+ */
+public class XmlIndexReleaseDescendantChecksumsTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(XmlIndexReleaseDescendantChecksumsTest.class);
+
+	private Map<String, String> release(int rids, Random random) {
+		Map<String, String> m = new HashMap<String, String>();
+		byte[] b = new byte[20];
+		for (int i = 0; i < rids; i++) {
+			random.nextBytes(b);
+			String checksum = XmlIndexRidChecksumMap.toHex(b);
+			if (i % 10 == 9) {
+				// Identical elements.
+				checksum = m.get("2gyvymn15kv" + Integer.toString(i - 9, 36));
+			}
+			m.put("2gyvymn15kv" + Integer.toString(i, 36), checksum);
+		}
+		return m;
+	}
+
+	private String reusevalue(Map<String, String> release, int rids) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < rids; i++) {
+			sb.append("2gyvymn15kv").append(Integer.toString(i, 36)).append(' ');
+		}
+		sb.append("2gyvymn15kvmissing ");
+		return sb.toString();
+	}
+
+	/**
+	 * Previous implementation.
+	 */
+	private void addDescendantChecksumsMaps(IndexingDoc fields, Map<String, String> ridChecksums) {
+		List<String> rids = Arrays.asList(((String) fields.getFieldValue("reuseridreusevalue")).split(" "));
+		HashMap<String, TreeMap<String, String>> shards = new HashMap<>();
+		for (String key: rids) {
+			String checksum = ridChecksums.get(key);
+			if (checksum == null) {
+				continue;
+			}
+			fields.addField("reuse_c_sha1_release_descendants", checksum);
+			String shardKey = checksum.substring(0, 2);
+			TreeMap<String, String> shard = shards.get(shardKey);
+			if (shard == null) {
+				shard = new TreeMap<>();
+				shards.put(shardKey, shard);
+			}
+			if (!shard.containsKey(checksum)) {
+				shard.put(checksum, checksum + " " + key);
+			}
+		}
+		for (String shardKey: shards.keySet()) {
+			for (String v: shards.get(shardKey).values()) {
+				fields.addField("reuse_rid_" + shardKey, v);
+			}
+		}
+	}
+
+	private IndexingDoc doc(String reusevalue) {
+		IndexingDoc fields = new IndexingDocIncrementalSolrj();
+		fields.addField("reuseridreusevalue", reusevalue);
+		return fields;
+	}
+
+	@Test
+	public void testSameAsMaps() {
+		Random random = new Random(1);
+		Map<String, String> m = release(5000, random);
+		String reusevalue = reusevalue(m, 4000);
+		IndexingDoc expected = doc(reusevalue);
+		addDescendantChecksumsMaps(expected, m);
+		IndexingDoc actual = doc(reusevalue);
+		XmlIndexReleaseReuseChecksum.addDescendantChecksums(actual, new XmlIndexRidChecksumMap(m));
+
+		assertEquals(expected.getFieldValues("reuse_c_sha1_release_descendants"), actual.getFieldValues("reuse_c_sha1_release_descendants"));
+		int shards = 0;
+		for (String name : expected.getFieldNames()) {
+			if (name.startsWith("reuse_rid_")) {
+				assertEquals(name, new ArrayList<Object>(expected.getFieldValues(name)), new ArrayList<Object>(actual.getFieldValues(name)));
+				shards++;
+			}
+		}
+		assertEquals(256, shards);
+		for (String name : actual.getFieldNames()) {
+			assertTrue(name, expected.containsKey(name));
+		}
+	}
+
+	@Test
+	public void testSingleRid() {
+		Map<String, String> m = new HashMap<String, String>();
+		m.put("2gyvymn15kv0006", "c5fed03ed1304cecce75d63aee2ada2b0f2326af");
+		IndexingDoc fields = doc("2gyvymn15kv0006 ");
+		XmlIndexReleaseReuseChecksum.addDescendantChecksums(fields, new XmlIndexRidChecksumMap(m));
+		Collection<Object> shard = fields.getFieldValues("reuse_rid_c5");
+		assertEquals(1, shard.size());
+		assertEquals("c5fed03ed1304cecce75d63aee2ada2b0f2326af 2gyvymn15kv0006", shard.iterator().next());
+		assertEquals(Arrays.asList("c5fed03ed1304cecce75d63aee2ada2b0f2326af"), new ArrayList<Object>(fields.getFieldValues("reuse_c_sha1_release_descendants")));
+	}
+
+	@Test
+	public void testBenchmark() {
+		Assume.assumeTrue(Boolean.getBoolean("se.simonsoft.cms.indexing.benchmark"));
+		int rids = 100000;
+		Map<String, String> m = release(rids, new Random(1));
+		XmlIndexRidChecksumMap compact = new XmlIndexRidChecksumMap(m);
+		String reusevalue = reusevalue(m, rids);
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			addDescendantChecksumsMaps(doc(reusevalue), m);
+			long maps = System.nanoTime() - start;
+			start = System.nanoTime();
+			XmlIndexReleaseReuseChecksum.addDescendantChecksums(doc(reusevalue), compact);
+			long sorted = System.nanoTime() - start;
+			logger.info("Descendant checksums for {} RIDs, maps: {} ms, sorted: {} ms", rids, maps / 1000000, sorted / 1000000);
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class XmlIndexRidChecksumCacheTest {
+
+	@Test
+	public void testEvictionByWeight() {
+		XmlIndexRidChecksumCache<String> cache = new XmlIndexRidChecksumCache<String>(100);
+		cache.put("a", "A", 40);
+		cache.put("b", "B", 40);
+		assertEquals("A", cache.get("a")); // b is now least recently used
+		cache.put("c", "C", 40);
+		assertEquals(2, cache.size());
+		assertEquals(80, cache.getWeight());
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals("C", cache.get("c"));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void testAboveWeightMax() {
+		XmlIndexRidChecksumCache<String> cache = new XmlIndexRidChecksumCache<String>(100);
+		cache.put("a", "A", 40);
+		cache.put("large", "L", 101);
+		assertFalse(cache.contains("large"));
+		assertTrue("not evicted by an entry that is not cached", cache.contains("a"));
+	}
+
+	@Test
+	public void testReplace() {
+		XmlIndexRidChecksumCache<String> cache = new XmlIndexRidChecksumCache<String>(100);
+		cache.put("a", "A", 40);
+		cache.put("a", "A2", 30);
+		assertEquals(30, cache.getWeight());
+		assertEquals("A2", cache.get("a"));
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class XmlIndexRidChecksumMapTest {
+
+	@Test
+	public void testGet() {
+		Map<String, String> m = new HashMap<String, String>();
+		m.put("2gyvymn15kv0000", "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+		m.put("2gyvymn15kv0001", "0000000000000000000000000000000000000001");
+		m.put("2gyvymn15kv0002", "");
+		m.put("2gyvymn15kv0003", "DA39A3EE5E6B4B0D3255BFEF95601890AFD80709");
+		XmlIndexRidChecksumMap map = new XmlIndexRidChecksumMap(m);
+		assertEquals(4, map.size());
+		assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", map.get("2gyvymn15kv0000"));
+		assertEquals("0000000000000000000000000000000000000001", map.get("2gyvymn15kv0001"));
+		assertEquals("kept as is", "", map.get("2gyvymn15kv0002"));
+		assertEquals("kept as is", "DA39A3EE5E6B4B0D3255BFEF95601890AFD80709", map.get("2gyvymn15kv0003"));
+		assertNull(map.get("2gyvymn15kv0004"));
+		assertNull(map.get("2gyvymn15kv000"));
+		assertTrue(map.containsKey("2gyvymn15kv0002"));
+		assertFalse(map.containsKey("x"));
+		assertEquals(-1, map.indexOf("2gyvymn15kv0002"));
+	}
+
+	@Test
+	public void testLarge() {
+		Map<String, String> m = new HashMap<String, String>();
+		for (int i = 0; i < 100000; i++) {
+			m.put("2gyvymn15kv" + Integer.toString(i, 36), XmlIndexRidChecksumMap.toHex(new byte[] {
+					(byte) i, (byte) (i >> 8), (byte) (i >> 16), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 }));
+		}
+		XmlIndexRidChecksumMap map = new XmlIndexRidChecksumMap(m);
+		assertEquals(m.size(), map.size());
+		for (Map.Entry<String, String> e : m.entrySet()) {
+			assertEquals(e.getValue(), map.get(e.getKey()));
+		}
+		assertNull(map.get("2gyvymn15kv-"));
+		assertTrue("weight " + map.getWeight(), map.getWeight() < 100000 * 100);
+	}
+
+	@Test
+	public void testEmpty() {
+		XmlIndexRidChecksumMap map = new XmlIndexRidChecksumMap(new HashMap<String, String>());
+		assertEquals(0, map.size());
+		assertNull(map.get("a"));
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.fields;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XmlIndexRidChecksumStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private XmlIndexRidChecksumMap map(int count) {
+		Map<String, String> m = new HashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			m.put("2gyvymn15kv" + i, String.format("%040x", i));
+		}
+		m.put("2gyvymn15kvempty", "");
+		return new XmlIndexRidChecksumMap(m);
+	}
+
+	@Test
+	public void testRoundtrip() throws Exception {
+		XmlIndexRidChecksumStore store = new XmlIndexRidChecksumStore(folder.newFolder("ridmaps"), 1024 * 1024);
+		assertNull(store.get("xsl:da39a3ee5e6b4b0d3255bfef95601890afd80709"));
+		store.put("xsl:da39a3ee5e6b4b0d3255bfef95601890afd80709", map(1000));
+
+		XmlIndexRidChecksumMap read = store.get("xsl:da39a3ee5e6b4b0d3255bfef95601890afd80709");
+		assertNotNull(read);
+		assertEquals(1001, read.size());
+		assertEquals(String.format("%040x", 999), read.get("2gyvymn15kv999"));
+		assertEquals("", read.get("2gyvymn15kvempty"));
+		assertNull(read.get("2gyvymn15kv1000"));
+		assertNull("different key", store.get("xsl:da39a3ee5e6b4b0d3255bfef95601890afd80708"));
+	}
+
+	@Test
+	public void testCorrupt() throws Exception {
+		XmlIndexRidChecksumStore store = new XmlIndexRidChecksumStore(folder.newFolder("ridmaps"), 1024 * 1024);
+		store.put("xsl:00", map(10));
+		File file = store.getFile("xsl:00");
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+			f.seek(30);
+			f.write(f.read() ^ 0xff);
+		}
+		assertNull("fails verification", store.get("xsl:00"));
+		assertFalse("invalid file deleted", file.exists());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		File dir = folder.newFolder("ridmaps");
+		new XmlIndexRidChecksumStore(dir, 1024 * 1024).put("xsl:01", map(100));
+		long length = new File(dir, "xsl-01" + XmlIndexRidChecksumStore.SUFFIX).length();
+		XmlIndexRidChecksumStore store = new XmlIndexRidChecksumStore(dir, length * 2);
+		store.getFile("xsl:01").setLastModified(System.currentTimeMillis() - 20000);
+		store.put("xsl:02", map(100));
+		store.getFile("xsl:02").setLastModified(System.currentTimeMillis() - 10000);
+		assertNotNull("read updates access time", store.get("xsl:01"));
+		store.put("xsl:03", map(100));
+		assertTrue(store.getFile("xsl:01").exists());
+		assertFalse("least recently used", store.getFile("xsl:02").exists());
+		assertTrue(store.getFile("xsl:03").exists());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		XmlIndexRidChecksumStore store = new XmlIndexRidChecksumStore("");
+		assertFalse(store.isEnabled());
+		store.put("xsl:00", map(10));
+		assertNull(store.get("xsl:00"));
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.file;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.indexing.xml.XmlIndexAddSession;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
+
+public class XmlIndexWriterFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testWriteAndLoad() throws Exception {
+		File dir = folder.newFolder("export");
+		XmlIndexWriterFile writer = new XmlIndexWriterFile(dir);
+		CmsRepository repository = new CmsRepository("http://localtesthost/svn/repo");
+		CmsChangesetItem c = mock(CmsChangesetItem.class);
+		when(c.getPath()).thenReturn(new CmsItemPath("/doc.xml"));
+
+		XmlIndexAddSession session = writer.get();
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000002|00000001", 1));
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000002|00000002", 2));
+		session.end();
+		writer.deletePath(repository, c);
+		session = writer.get();
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000003|00000001", 1));
+		session.end();
+		writer.close();
+		assertTrue(new File(dir, XmlIndexWriterFile.MANIFEST).exists());
+
+		SolrClient core = mock(SolrClient.class);
+		when(core.add(any(Collection.class))).thenReturn(new UpdateResponse());
+		when(core.deleteById(any(List.class))).thenReturn(new UpdateResponse());
+		assertEquals(3, new XmlIndexFileLoader(core).load(dir));
+
+		ArgumentCaptor<Collection> added = ArgumentCaptor.forClass(Collection.class);
+		verify(core, times(2)).add(added.capture());
+		List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+		for (Collection batch : added.getAllValues()) {
+			docs.addAll(batch);
+		}
+		assertEquals(3, docs.size());
+		SolrInputDocument second = docs.get(1);
+		assertEquals("localtesthost/svn/repo/doc.xml@0000000002|00000002", second.getFieldValue("id"));
+		assertEquals(2, second.getFieldValue("depth"));
+		assertEquals(Arrays.asList("doc", "section"), new ArrayList<Object>(second.getFieldValues("aa_name")));
+
+		ArgumentCaptor<List> deleted = ArgumentCaptor.forClass(List.class);
+		verify(core).deleteById(deleted.capture());
+		assertEquals("delete using recorded element count", Arrays.asList(
+				"localtesthost/svn/repo/doc.xml@0000000002|00000001",
+				"localtesthost/svn/repo/doc.xml@0000000002|00000002"), deleted.getValue());
+	}
+
+	private IndexingDoc doc(String id, int depth) {
+		IndexingDoc doc = new IndexingDocIncrementalSolrj();
+		doc.addField("id", id);
+		doc.addField("pathfull", "/svn/repo/doc.xml");
+		doc.addField("depth", depth);
+		doc.addField("aa_name", "doc");
+		doc.addField("aa_name", "section");
+		return doc;
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class XmlIndexBatchSizeTest {
+
+	private XmlIndexBatchSize getBatchSize(final boolean heapLow) {
+		return new XmlIndexBatchSize(500 * 1000, 100 * 1000, 2000 * 1000) {
+			@Override
+			public boolean isHeapLow() {
+				return heapLow;
+			}
+		};
+	}
+
+	@Test
+	public void testGrowWhileLatencyFalls() {
+		XmlIndexBatchSize b = getBatchSize(false);
+		assertEquals(500000, b.getBatchSize());
+		b.reportSuccess(500000, 1000); // First measurement, baseline.
+		assertEquals(500000, b.getBatchSize());
+		b.reportSuccess(500000, 900);
+		assertEquals(625000, b.getBatchSize());
+		for (int i = 0; i < 20; i++) {
+			b.reportSuccess(b.getBatchSize(), b.getBatchSize() / 1000);
+		}
+		assertEquals("bounded by max", 2000000, b.getBatchSize());
+	}
+
+	@Test
+	public void testNoGrowOnSmallBatches() {
+		XmlIndexBatchSize b = getBatchSize(false);
+		b.reportSuccess(10000, 20);
+		b.reportSuccess(10000, 10);
+		assertEquals("last batch of small files does not indicate anything about larger batches", 500000, b.getBatchSize());
+	}
+
+	@Test
+	public void testShrinkOnSpike() {
+		XmlIndexBatchSize b = getBatchSize(false);
+		b.reportSuccess(500000, 1000);
+		b.reportSuccess(500000, 5000);
+		assertEquals(250000, b.getBatchSize());
+		b.reportSuccess(250000, 5000);
+		assertEquals(125000, b.getBatchSize());
+		b.reportSuccess(125000, 5000);
+		assertEquals("bounded by min", 100000, b.getBatchSize());
+	}
+
+	@Test
+	public void testShrinkOnFailure() {
+		XmlIndexBatchSize b = getBatchSize(false);
+		b.reportFailure();
+		assertEquals(250000, b.getBatchSize());
+	}
+
+	@Test
+	public void testShrinkOnLowHeap() {
+		XmlIndexBatchSize b = getBatchSize(true);
+		b.reportSuccess(500000, 100);
+		assertEquals(250000, b.getBatchSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBounds() {
+		new XmlIndexBatchSize(50, 100, 1000);
+	}
+
+}
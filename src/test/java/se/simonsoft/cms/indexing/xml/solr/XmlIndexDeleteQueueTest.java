@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.indexing.xml.XmlIndexAddSession;
+
+public class XmlIndexDeleteQueueTest {
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testRequestSizeMax() throws Exception {
+		SolrClient core = mock(SolrClient.class);
+		when(core.deleteById(any(List.class))).thenReturn(new UpdateResponse());
+		XmlIndexDeleteQueue queue = new XmlIndexDeleteQueue(3);
+
+		assertFalse(queue.add(Arrays.asList("a1", "a2")));
+		assertTrue("flush when reaching max", queue.add(Arrays.asList("b1", "b2", "b3", "b4", "b5")));
+		queue.flushTo(core);
+		assertEquals(0, queue.size());
+
+		ArgumentCaptor<List> deleted = ArgumentCaptor.forClass(List.class);
+		verify(core, times(3)).deleteById(deleted.capture());
+		assertEquals(Arrays.asList("a1", "a2", "b1"), deleted.getAllValues().get(0));
+		assertEquals(Arrays.asList("b2", "b3", "b4"), deleted.getAllValues().get(1));
+		assertEquals(Arrays.asList("b5"), deleted.getAllValues().get(2));
+
+		queue.flushTo(core);
+		verifyNoMoreInteractions(core);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testFailureKeepsIds() throws Exception {
+		SolrClient core = mock(SolrClient.class);
+		when(core.deleteById(any(List.class)))
+				.thenReturn(new UpdateResponse())
+				.thenThrow(new SolrServerException("Solr is restarting"));
+		XmlIndexDeleteQueue queue = new XmlIndexDeleteQueue(2);
+		queue.add(Arrays.asList("a1", "a2", "a3", "a4", "a5"));
+
+		try {
+			queue.flushTo(core);
+			fail("Should throw when the delete fails");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals("ids not deleted are kept", 3, queue.size());
+
+		reset(core);
+		when(core.deleteById(any(List.class))).thenReturn(new UpdateResponse());
+		queue.flushTo(core);
+		assertEquals(0, queue.size());
+		ArgumentCaptor<List> deleted = ArgumentCaptor.forClass(List.class);
+		verify(core, times(2)).deleteById(deleted.capture());
+		assertEquals(Arrays.asList("a3", "a4"), deleted.getAllValues().get(0));
+		assertEquals(Arrays.asList("a5"), deleted.getAllValues().get(1));
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	@Test
+	public void testFlushBeforeAdd() throws Exception {
+		SolrClient core = mock(SolrClient.class);
+		when(core.deleteById(any(List.class))).thenReturn(new UpdateResponse());
+		when(core.add(anyCollection())).thenReturn(new UpdateResponse());
+		XmlIndexWriterSolrj writer = new XmlIndexWriterSolrj(core);
+		XmlIndexDeleteQueue.forCore(core).add(Arrays.asList("localtesthost/svn/repo/doc.xml@0000000002|00000001"));
+
+		XmlIndexAddSession session = writer.get();
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000003|00000001"));
+		session.end();
+
+		InOrder order = inOrder(core);
+		order.verify(core).deleteById(Arrays.asList("localtesthost/svn/repo/doc.xml@0000000002|00000001"));
+		order.verify(core).add(anyCollection());
+		assertEquals(0, XmlIndexDeleteQueue.forCore(core).size());
+	}
+
+	private IndexingDoc doc(String id) {
+		IndexingDoc doc = new IndexingDocIncrementalSolrj();
+		doc.addField("id", id);
+		doc.addField("pathfull", "/svn/repo/doc.xml");
+		doc.addField("depth", 1);
+		return doc;
+	}
+
+}
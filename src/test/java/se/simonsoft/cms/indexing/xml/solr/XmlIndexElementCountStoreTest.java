@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class XmlIndexElementCountStoreTest {
+
+	@Test
+	public void testPutRemove() {
+		XmlIndexElementCountStore store = new XmlIndexElementCountStore(10);
+		store.put("/svn/repo/doc.xml", "localtesthost/svn/repo/doc.xml@0000000002|", 4);
+		store.put("/svn/repo/doc.xml", "localtesthost/svn/repo/doc.xml@0000000003|", 5);
+		assertEquals(1, store.size());
+
+		XmlIndexElementCountStore.Entry e = store.remove("/svn/repo/doc.xml");
+		assertEquals("latest revision", "localtesthost/svn/repo/doc.xml@0000000003|", e.getIdBase());
+		assertEquals(5, e.getCount());
+		assertNull("delete must not be repeated", store.remove("/svn/repo/doc.xml"));
+	}
+
+	@Test
+	public void testBounded() {
+		XmlIndexElementCountStore store = new XmlIndexElementCountStore(2);
+		store.put("/a.xml", "a@1|", 1);
+		store.put("/b.xml", "b@1|", 1);
+		store.put("/c.xml", "c@1|", 1);
+		assertEquals(2, store.size());
+		assertNull("least recently used is evicted", store.remove("/a.xml"));
+		assertNotNull(store.remove("/c.xml"));
+	}
+
+}
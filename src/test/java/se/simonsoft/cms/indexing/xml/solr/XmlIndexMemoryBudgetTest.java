@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+public class XmlIndexMemoryBudgetTest {
+
+	@Test
+	public void testEstimate() {
+		SolrInputDocument small = new SolrInputDocument();
+		small.setField("id", "repo/doc.xml@0000000001|00000001");
+		small.setField("depth", 1);
+
+		SolrInputDocument large = small.deepCopy();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append("word ");
+		}
+		large.setField("text", text.toString());
+
+		long sSmall = XmlIndexMemoryBudget.estimate(small);
+		long sLarge = XmlIndexMemoryBudget.estimate(large);
+		assertTrue("at least the characters of the id: " + sSmall, sSmall > 2 * 32);
+		assertTrue("text is 2 bytes per char: " + sLarge, sLarge - sSmall > 2 * 5000);
+
+		SolrInputDocument multi = small.deepCopy();
+		multi.setField("reuse_c_sha1_release_descendants", Arrays.asList("a1a1a1a1", "b2b2b2b2", "c3c3c3c3"));
+		assertTrue("multi-values are counted", XmlIndexMemoryBudget.estimate(multi) - sSmall > 3 * 2 * 8);
+	}
+
+	@Test
+	public void testEstimateShared() {
+		SolrInputDocument base = new SolrInputDocument();
+		StringBuilder deps = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			deps.append("x-svn:///svn/demo1^/vvab/xml/documents/section.xml ");
+		}
+		base.setField("prop_abx.Dependencies", deps.toString());
+
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.setField("id", "repo/doc.xml@0000000001|00000002");
+		doc.put("prop_abx.Dependencies", base.getField("prop_abx.Dependencies"));
+
+		long own = XmlIndexMemoryBudget.estimate(doc, base);
+		assertTrue("shared field is not counted: " + own, own < 200);
+		assertTrue("counted without the shared doc", XmlIndexMemoryBudget.estimate(doc) - own > 2 * deps.length());
+
+		SolrInputDocument copy = doc.deepCopy();
+		assertEquals("only the same field instance is shared", XmlIndexMemoryBudget.estimate(doc), XmlIndexMemoryBudget.estimate(copy, base));
+	}
+
+	@Test
+	public void testAcquireRelease() throws Exception {
+		final XmlIndexMemoryBudget budget = new XmlIndexMemoryBudget(1000);
+		assertTrue(budget.tryAcquire(600));
+		assertFalse(budget.tryAcquire(600));
+		assertEquals(400, budget.getAvailable());
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				budget.acquire(600);
+				acquired.countDown();
+			}
+		});
+		t.start();
+		assertFalse("should block until released", acquired.await(200, TimeUnit.MILLISECONDS));
+		budget.release(600);
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		assertEquals(400, budget.getAvailable());
+
+		budget.release(600);
+		assertEquals("a document larger than the budget acquires the whole budget", 1000, budget.acquire(5000));
+		budget.release(1000);
+		assertEquals(1000, budget.getAvailable());
+	}
+
+}
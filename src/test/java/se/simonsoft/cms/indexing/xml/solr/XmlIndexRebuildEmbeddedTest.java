@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import java.io.File;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.SolrCore;
+import org.junit.Test;
+
+import se.repos.indexing.IndexingDoc;
+import se.repos.indexing.twophases.IndexingDocIncrementalSolrj;
+import se.simonsoft.cms.indexing.xml.XmlIndexAddSession;
+import se.simonsoft.cms.indexing.xml.file.XmlIndexWriterFile;
+
+/**
+ * Smoke test of the rebuild core, see {@link CoreReposxmlIntegrationTest} regarding assertions and securerandom.
+ */
+public class XmlIndexRebuildEmbeddedTest extends SolrTestCaseJ4 {
+
+	@Test
+	public void testRebuild() throws Exception {
+		File export = createTempDir("export").toFile();
+		XmlIndexWriterFile writer = new XmlIndexWriterFile(new File(export, "reposxml"));
+		XmlIndexAddSession session = writer.get();
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000002|00000001", 1, "1"));
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000002|00000002", 2, "1.1"));
+		session.add(doc("localtesthost/svn/repo/doc.xml@0000000002|00000003", 2, "1.2"));
+		session.end();
+		writer.close();
+
+		XmlIndexRebuildEmbedded rebuild = new XmlIndexRebuildEmbedded(createTempDir("solrhome").toFile(), 64, 0);
+		assertEquals(3, rebuild.load(new File(export, "reposxml")));
+
+		EmbeddedSolrServer server = (EmbeddedSolrServer) rebuild.getClient();
+		try (SolrCore core = server.getCoreContainer().getCore(XmlIndexRebuildEmbedded.CORE)) {
+			assertEquals("overrides ramBufferSizeMB", 64.0, core.getSolrConfig().indexConfig.ramBufferSizeMB, 0.0);
+			assertNull("update log disabled", core.getUpdateHandler().getUpdateLog());
+			assertEquals(rebuild.getDataDir().toPath(), new File(core.getDataDir()).toPath());
+		}
+		server.commit();
+		assertEquals(3, server.query(new SolrQuery("*:*")).getResults().getNumFound());
+		assertEquals(2, server.query(new SolrQuery("depth:2")).getResults().getNumFound());
+
+		File data = rebuild.complete();
+		assertTrue("index written to the data directory", new File(data, "index").isDirectory());
+	}
+
+	private IndexingDoc doc(String id, int depth, String treelocation) {
+		IndexingDoc doc = new IndexingDocIncrementalSolrj();
+		doc.addField("id", id);
+		doc.addField("pathfull", "/svn/repo/doc.xml");
+		doc.addField("depth", depth);
+		doc.addField("name", depth == 1 ? "doc" : "section");
+		doc.addField("treelocation", treelocation);
+		return doc;
+	}
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+public class XmlIndexSendJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testSpillAndReplay() throws Exception {
+		File dir = folder.newFolder("journal");
+		XmlIndexSendJournal journal = new XmlIndexSendJournal(dir, 1000);
+		SolrClient core = mock(SolrClient.class);
+		when(core.add(any(Collection.class))).thenThrow(new SolrServerException("Solr is restarting"));
+
+		assertFalse("kept for replay", journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000001"), doc("doc.xml@0000000002|00000002"))));
+		assertFalse("spilled while pending", journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000003"))));
+		assertTrue(journal.hasPending());
+		assertEquals(2, dir.listFiles().length);
+
+		reset(core);
+		when(core.add(any(Collection.class))).thenReturn(new UpdateResponse());
+		assertTrue(journal.drain(core));
+		assertFalse(journal.hasPending());
+		assertEquals("acknowledged batches are removed", 0, dir.listFiles().length);
+
+		ArgumentCaptor<Collection> sent = ArgumentCaptor.forClass(Collection.class);
+		verify(core, times(2)).add(sent.capture());
+		List<Collection> batches = sent.getAllValues();
+		assertEquals("replayed in order", 2, batches.get(0).size());
+		SolrInputDocument first = (SolrInputDocument) batches.get(0).iterator().next();
+		assertEquals("doc.xml@0000000002|00000001", first.getFieldValue("id"));
+		assertEquals(Arrays.asList("a", "b"), first.getFieldValues("ia_name"));
+		assertEquals(1, batches.get(1).size());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testInFlightNotSpilled() throws Exception {
+		File dir = folder.newFolder("journal");
+		final XmlIndexSendJournal journal = new XmlIndexSendJournal(dir, 1000);
+		final SolrClient core = mock(SolrClient.class);
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch acknowledge = new CountDownLatch(1);
+		when(core.add(any(Collection.class))).thenAnswer(invocation -> {
+			if (sending.getCount() > 0) {
+				sending.countDown();
+				acknowledge.await();
+			}
+			return new UpdateResponse();
+		});
+
+		Thread first = new Thread(() -> journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000001"))));
+		first.start();
+		assertTrue(sending.await(10, TimeUnit.SECONDS));
+		assertFalse("in flight is not failed", journal.hasPending());
+		assertTrue("sent while another batch is in flight", journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000002"))));
+		assertTrue("nothing to replay", journal.drain(core));
+		acknowledge.countDown();
+		first.join();
+
+		verify(core, times(2)).add(any(Collection.class));
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testTruncatedEntry() throws Exception {
+		File dir = folder.newFolder("journal");
+		XmlIndexSendJournal journal = new XmlIndexSendJournal(dir, 1000);
+		SolrClient core = mock(SolrClient.class);
+		when(core.add(any(Collection.class))).thenThrow(new SolrServerException("Solr is restarting"));
+
+		assertFalse(journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000001"), doc("doc.xml@0000000002|00000002"))));
+		assertFalse(journal.send(core, Arrays.asList(doc("doc.xml@0000000002|00000003"))));
+		File[] entries = dir.listFiles();
+		Arrays.sort(entries);
+		assertEquals(2, entries.length);
+		try (RandomAccessFile f = new RandomAccessFile(entries[0], "rw")) {
+			f.setLength(f.length() / 2);
+		}
+
+		reset(core);
+		when(core.add(any(Collection.class))).thenReturn(new UpdateResponse());
+		assertTrue("replay continues after the unreadable entry", journal.drain(core));
+		assertFalse(journal.hasPending());
+		verify(core, times(1)).add(any(Collection.class));
+		File[] kept = dir.listFiles();
+		assertEquals("quarantined", 1, kept.length);
+		assertEquals(entries[0].getName() + ".corrupt", kept[0].getName());
+
+		try {
+			journal.awaitDrained(core);
+			fail("the changeset should fail, documents are missing");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(kept[0].getName()));
+		}
+		journal.awaitDrained(core); // Only once.
+		assertTrue(journal.send(core, Arrays.asList(doc("doc.xml@0000000003|00000001"))));
+	}
+
+	private SolrInputDocument doc(String id) {
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.setField("id", id);
+		doc.setField("depth", 1);
+		doc.setField("ia_name", Arrays.asList("a", "b"));
+		return doc;
+	}
+
+}
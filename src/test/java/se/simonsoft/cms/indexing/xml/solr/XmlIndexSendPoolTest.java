@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-2017 Simonsoft Nordic AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.simonsoft.cms.indexing.xml.solr;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.junit.Test;
+
+public class XmlIndexSendPoolTest {
+
+	@Test
+	public void testAwaitCompletion() {
+		XmlIndexSendPool pool = new XmlIndexSendPool(2, 2);
+		final AtomicInteger sent = new AtomicInteger();
+		for (int i = 0; i < 20; i++) {
+			pool.submit("/svn/repo/doc" + (i % 3) + ".xml", new Runnable() {
+				@Override
+				public void run() {
+					sleep(5);
+					sent.incrementAndGet();
+				}
+			});
+		}
+		pool.awaitCompletion();
+		assertEquals("all batches sent before barrier returns", 20, sent.get());
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		XmlIndexSendPool pool = new XmlIndexSendPool(1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger started = new AtomicInteger();
+		Runnable blocked = new Runnable() {
+			@Override
+			public void run() {
+				started.incrementAndGet();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		pool.submit("a", blocked);
+		pool.submit("a", blocked);
+
+		final CountDownLatch third = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				pool.submit("a", new Runnable() {
+					@Override
+					public void run() {
+					}
+				});
+				third.countDown();
+			}
+		});
+		producer.start();
+		assertFalse("third submit should block while one is sending and one is queued", third.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue("third submit should proceed when a slot is released", third.await(5, TimeUnit.SECONDS));
+		pool.awaitCompletion();
+		assertEquals(2, started.get());
+	}
+
+	@Test
+	public void testAwaitCompletionKey() {
+		XmlIndexSendPool pool = new XmlIndexSendPool(2, 0);
+		final AtomicInteger sentA = new AtomicInteger();
+		pool.submit("a", new Runnable() {
+			@Override
+			public void run() {
+				sleep(100);
+				sentA.incrementAndGet();
+			}
+		});
+		pool.awaitCompletion("a");
+		assertEquals(1, sentA.get());
+		pool.awaitCompletion("b"); // Nothing pending.
+	}
+
+	@Test
+	public void testFailureReportedAtBarrier() {
+		XmlIndexSendPool pool = new XmlIndexSendPool(1, 1);
+		pool.submit("/svn/repo/failing.xml", new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("Solr unavailable");
+			}
+		});
+		try {
+			pool.awaitCompletion();
+			fail("Should report the failed batch");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("/svn/repo/failing.xml"));
+		}
+		// Failure is reported once.
+		pool.awaitCompletion();
+	}
+
+	@Test
+	public void testForCore() {
+		SolrClient core1 = mock(SolrClient.class);
+		SolrClient core2 = mock(SolrClient.class);
+		assertSame(XmlIndexSendPool.forCore(core1, 2, 4), XmlIndexSendPool.forCore(core1, 1, 0));
+		assertNotSame(XmlIndexSendPool.forCore(core1, 2, 4), XmlIndexSendPool.forCore(core2, 2, 4));
+		XmlIndexSendPool.awaitCompletion(mock(SolrClient.class)); // No pool, no-op.
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
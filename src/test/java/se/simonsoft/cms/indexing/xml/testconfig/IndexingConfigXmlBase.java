@@ -55,6 +55,15 @@ public class IndexingConfigXmlBase extends AbstractModule {
 		bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.maxFilesize")).toInstance(new Integer(10 * 1048576));
 		bind(String.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.suppressRidBefore")).toInstance(new String(""));
 		bind(String.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.tsourceAllowed")).toInstance(new String("tsp"));
+		bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.sendThreads")).toInstance(new Integer(2));
+		bind(Boolean.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.deleteCoalescing")).toInstance(Boolean.FALSE);
+		bind(String.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.journalDir")).toInstance(new String(""));
+		bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.journalPendingMax")).toInstance(new Integer(1000));
+		bind(Boolean.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.streaming")).toInstance(Boolean.FALSE);
+		bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.parallelThreads")).toInstance(new Integer(0));
+		bind(Integer.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.prefetchLookahead")).toInstance(new Integer(0));
+		bind(String.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.ridmapDir")).toInstance(new String(""));
+		bind(Boolean.class).annotatedWith(Names.named("se.simonsoft.cms.indexing.xml.releasePrecompute")).toInstance(Boolean.FALSE);
 	}
 
 }